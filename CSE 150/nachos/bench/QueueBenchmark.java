@@ -0,0 +1,259 @@
+package nachos.bench;
+
+import nachos.threads.KThread;
+import nachos.threads.LotteryScheduler;
+import nachos.threads.PriorityScheduler;
+import nachos.threads.Scheduler;
+import nachos.threads.ThreadQueue;
+
+import java.util.Random;
+
+/**
+ * Microbenchmarks for <tt>ThreadQueue</tt> implementations. Each scheduler is installed on a
+ * <tt>StubMachine</tt> and driven directly through <tt>waitForAccess()</tt>, <tt>nextThread()</tt>,
+ * <tt>acquire()</tt> and <tt>setPriority()</tt> with synthetic workloads, so that changes to a
+ * scheduler's data structures can be measured in isolation from context switches and the rest of
+ * the kernel.
+ *
+ * <p>
+ *
+ * <p>Usage:
+ *
+ * <blockquote>
+ *
+ * <pre>
+ * java nachos.bench.QueueBenchmark [-n size] [-w warmup] [-i iterations] [scheduler ...]
+ * </pre>
+ *
+ * </blockquote>
+ *
+ * <p>If no scheduler is given, the round-robin, priority and lottery schedulers are measured. The
+ * workloads are:
+ *
+ * <ul>
+ *   <li><tt>waiters</tt>: <i>size</i> threads wait on one lock queue, then all are dequeued.
+ *   <li><tt>chain</tt>: a donation chain <i>size</i> locks deep is built, the priority of the thread
+ *       at its tail is changed <i>size</i> times, and the chain is released.
+ *   <li><tt>churn</tt>: <i>size</i> threads wait on one lock queue while the priorities of random
+ *       waiters are changed <i>size</i> times.
+ * </ul>
+ */
+public class QueueBenchmark {
+  private static final String[] defaultSchedulers = {
+    "nachos.threads.RoundRobinScheduler",
+    "nachos.threads.PriorityScheduler",
+    "nachos.threads.LotteryScheduler"
+  };
+
+  private Scheduler scheduler;
+  private int minPriority, maxPriority;
+  private Random random = new Random(0);
+
+  /**
+   * Allocate a benchmark for the specified scheduler, installing it on the stub machine.
+   *
+   * @param schedulerName the class name of the scheduler to measure.
+   */
+  public QueueBenchmark(String schedulerName) {
+    scheduler = StubMachine.installScheduler(schedulerName);
+
+    minPriority = minPriority(scheduler);
+    maxPriority = maxPriority(scheduler);
+  }
+
+  /**
+   * Return the lowest priority the benchmarks assign under the specified scheduler.
+   *
+   * @param scheduler the scheduler.
+   * @return the lowest priority to use.
+   */
+  static int minPriority(Scheduler scheduler) {
+    if (scheduler instanceof PriorityScheduler) return PriorityScheduler.priorityMinimum;
+    else if (scheduler instanceof LotteryScheduler) return LotteryScheduler.priorityMinimum;
+    else return 0;
+  }
+
+  /**
+   * Return the highest priority the benchmarks assign under the specified scheduler. Lottery
+   * tickets are capped so that sums of donated tickets stay meaningful.
+   *
+   * @param scheduler the scheduler.
+   * @return the highest priority to use.
+   */
+  static int maxPriority(Scheduler scheduler) {
+    if (scheduler instanceof PriorityScheduler) return PriorityScheduler.priorityMaximum;
+    else if (scheduler instanceof LotteryScheduler) return 1000;
+    else return 0;
+  }
+
+  /**
+   * Run the benchmarks.
+   *
+   * @param args the command line arguments.
+   */
+  public static void main(String[] args) {
+    int size = 256, warmup = 20, iterations = 50;
+    int first = 0;
+
+    while (first < args.length && args[first].startsWith("-")) {
+      String flag = args[first++];
+      int value = Integer.parseInt(args[first++]);
+      if (flag.equals("-n")) size = value;
+      else if (flag.equals("-w")) warmup = value;
+      else if (flag.equals("-i")) iterations = value;
+      else throw new IllegalArgumentException("unknown option: " + flag);
+    }
+
+    String[] schedulers = defaultSchedulers;
+    if (first < args.length) {
+      schedulers = new String[args.length - first];
+      System.arraycopy(args, first, schedulers, 0, schedulers.length);
+    }
+
+    StubMachine.install();
+
+    System.out.println(
+        String.format("%-36s %-8s %6s %12s %12s", "scheduler", "workload", "size", "ns/op", "min"));
+
+    for (String name : schedulers) {
+      QueueBenchmark benchmark = new QueueBenchmark(name);
+      benchmark.measure(name, benchmark.new Waiters(size), warmup, iterations);
+      benchmark.measure(name, benchmark.new Chain(size), warmup, iterations);
+      benchmark.measure(name, benchmark.new Churn(size), warmup, iterations);
+    }
+  }
+
+  private void measure(String name, Workload workload, int warmup, int iterations) {
+    for (int i = 0; i < warmup; i++) {
+      workload.setup();
+      workload.run();
+    }
+
+    long total = 0, totalOps = 0;
+    double best = Double.MAX_VALUE;
+
+    for (int i = 0; i < iterations; i++) {
+      workload.setup();
+      long start = System.nanoTime();
+      int ops = workload.run();
+      long elapsed = System.nanoTime() - start;
+
+      total += elapsed;
+      totalOps += ops;
+      best = Math.min(best, (double) elapsed / ops);
+    }
+
+    System.out.println(
+        String.format(
+            "%-36s %-8s %6d %12.1f %12.1f",
+            name, workload.name, workload.size, (double) total / totalOps, best));
+  }
+
+  private KThread[] newThreads(String prefix, int count) {
+    KThread[] threads = new KThread[count];
+    for (int i = 0; i < count; i++) threads[i] = KThread.newDetachedThread(prefix + i);
+    return threads;
+  }
+
+  private int randomPriority() {
+    return minPriority + random.nextInt(maxPriority - minPriority + 1);
+  }
+
+  private abstract class Workload {
+    String name;
+    int size;
+
+    Workload(String name, int size) {
+      this.name = name;
+      this.size = size;
+    }
+
+    /** Create fresh threads and queues for the next iteration. Not timed. */
+    abstract void setup();
+
+    /**
+     * Run one timed iteration.
+     *
+     * @return the number of thread queue operations performed.
+     */
+    abstract int run();
+  }
+
+  private class Waiters extends Workload {
+    private ThreadQueue queue;
+    private KThread[] waiters;
+
+    Waiters(int size) {
+      super("waiters", size);
+    }
+
+    void setup() {
+      queue = scheduler.newThreadQueue(true);
+      queue.acquire(KThread.newDetachedThread("holder"));
+
+      waiters = newThreads("waiter", size);
+      for (KThread thread : waiters) scheduler.setPriority(thread, randomPriority());
+    }
+
+    int run() {
+      for (KThread thread : waiters) queue.waitForAccess(thread);
+      for (int i = 0; i < waiters.length; i++) queue.nextThread();
+
+      return 2 * waiters.length;
+    }
+  }
+
+  private class Chain extends Workload {
+    private ThreadQueue[] locks;
+    private KThread[] threads;
+
+    Chain(int size) {
+      super("chain", size);
+    }
+
+    void setup() {
+      threads = newThreads("link", size + 1);
+      locks = new ThreadQueue[size];
+      for (int i = 0; i < size; i++) {
+        locks[i] = scheduler.newThreadQueue(true);
+        locks[i].acquire(threads[i]);
+      }
+    }
+
+    int run() {
+      // thread i+1 holds lock i+1 and waits for lock i
+      for (int i = 0; i < size; i++) locks[i].waitForAccess(threads[i + 1]);
+
+      KThread tail = threads[size];
+      for (int i = 0; i < size; i++)
+        scheduler.setPriority(tail, (i % 2 == 0) ? maxPriority : minPriority);
+
+      for (int i = size - 1; i >= 0; i--) locks[i].nextThread();
+
+      return 3 * size;
+    }
+  }
+
+  private class Churn extends Workload {
+    private KThread[] waiters;
+
+    Churn(int size) {
+      super("churn", size);
+    }
+
+    void setup() {
+      ThreadQueue queue = scheduler.newThreadQueue(true);
+      queue.acquire(KThread.newDetachedThread("holder"));
+
+      waiters = newThreads("waiter", size);
+      for (KThread thread : waiters) queue.waitForAccess(thread);
+    }
+
+    int run() {
+      for (int i = 0; i < size; i++)
+        scheduler.setPriority(waiters[random.nextInt(waiters.length)], randomPriority());
+
+      return size;
+    }
+  }
+}
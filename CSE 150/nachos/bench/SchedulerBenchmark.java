@@ -0,0 +1,222 @@
+package nachos.bench;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.ThreadedKernel;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that runs a fixed suite of synthetic workloads under the configured scheduler and
+ * reports how well the scheduler handled them. Running it once per scheduler (see the
+ * <tt>schedbench</tt> target in the <tt>Makefile</tt>) gives a like-for-like comparison.
+ *
+ * <p>
+ *
+ * <p>Each workload forks a number of jobs and joins them all. The workloads are:
+ *
+ * <ul>
+ *   <li><tt>cpu</tt>: every job computes for the same amount of time.
+ *   <li><tt>io</tt>: jobs alternate short computations with sleeps on the <tt>Alarm</tt>.
+ *   <li><tt>lock</tt>: jobs repeatedly compute while holding one shared <tt>Lock</tt>.
+ *   <li><tt>mixed</tt>: a combination of the three.
+ * </ul>
+ *
+ * <p>Jobs are given a spread of priorities. For each workload the kernel reports throughput (jobs
+ * per 1000 ticks), mean and 99th percentile turnaround time, mean response time (from fork to first
+ * run), Jain's fairness index over the rate at which each job received service, and the number of
+ * context switches (when run with <tt>SwitchCountingGrader</tt>).
+ *
+ * <p>
+ *
+ * <p>The number of jobs and the work each does are read from the <tt>SchedulerBenchmark.jobs</tt>
+ * and <tt>SchedulerBenchmark.work</tt> configuration keys; the work must be at least 10.
+ */
+public class SchedulerBenchmark extends ThreadedKernel {
+  private static final char dbgBench = 'b';
+  private int numJobs;
+  private int work;
+  private int minPriority, maxPriority;
+
+  /** Allocate a new scheduler benchmark kernel. */
+  public SchedulerBenchmark() {
+    super();
+  }
+
+  /** Compute for approximately the specified number of ticks, allowing preemption throughout. */
+  private static void compute(int ticks) {
+    for (int i = 0; i < ticks; i += Stats.KernelTick) {
+      Machine.interrupt().disable();
+      Machine.interrupt().enable();
+    }
+  }
+
+  public void initialize(String[] args) {
+    super.initialize(args);
+
+    numJobs = Config.getInteger("SchedulerBenchmark.jobs", 20);
+    work = Config.getInteger("SchedulerBenchmark.work", 5000);
+    // the io and lock workloads step through their work in tenths
+    Lib.assertTrue(work >= 10, "SchedulerBenchmark.work must be at least 10");
+
+    minPriority = QueueBenchmark.minPriority(scheduler);
+    maxPriority = QueueBenchmark.maxPriority(scheduler);
+  }
+
+  /** The benchmark replaces the usual kernel tests. */
+  public void selfTest() {}
+
+  /** Run every workload and print the results. */
+  public void run() {
+    System.out.println("scheduler: " + scheduler.getClass().getName());
+    System.out.println(
+        String.format(
+            "%-6s %5s %8s %10s %10s %10s %8s %9s",
+            "load", "jobs", "tput", "turnaround", "p99", "response", "fairness", "switches"));
+
+    final Lock shared = new Lock();
+
+    runWorkload(
+        "cpu",
+        new Body() {
+          public void run(int i) {
+            compute(work);
+          }
+        });
+
+    runWorkload(
+        "io",
+        new Body() {
+          public void run(int i) {
+            for (int done = 0; done < work; done += work / 5) {
+              compute(work / 20);
+              ThreadedKernel.alarm.waitUntil(work / 5);
+            }
+          }
+        });
+
+    runWorkload(
+        "lock",
+        new Body() {
+          public void run(int i) {
+            for (int done = 0; done < work; done += work / 10) {
+              shared.acquire();
+              compute(work / 10);
+              shared.release();
+            }
+          }
+        });
+
+    runWorkload(
+        "mixed",
+        new Body() {
+          public void run(int i) {
+            switch (i % 3) {
+              case 0:
+                compute(work);
+                break;
+              case 1:
+                for (int done = 0; done < work; done += work / 5) {
+                  compute(work / 20);
+                  ThreadedKernel.alarm.waitUntil(work / 5);
+                }
+                break;
+              default:
+                for (int done = 0; done < work; done += work / 10) {
+                  shared.acquire();
+                  compute(work / 10);
+                  shared.release();
+                }
+            }
+          }
+        });
+  }
+
+  private void runWorkload(String name, Body body) {
+    Job[] jobs = new Job[numJobs];
+    long switches = SwitchCountingGrader.getSwitches();
+    long start = Machine.timer().getTime();
+
+    for (int i = 0; i < numJobs; i++) {
+      jobs[i] = new Job(i, body);
+      KThread thread = new KThread(jobs[i]).setName(name + " job " + i);
+      jobs[i].thread = thread;
+
+      boolean intStatus = Machine.interrupt().disable();
+      scheduler.setPriority(thread, minPriority + i % (maxPriority - minPriority + 1));
+      jobs[i].forked = Machine.timer().getTime();
+      thread.fork();
+      Machine.interrupt().restore(intStatus);
+    }
+
+    for (Job job : jobs) job.thread.join();
+
+    long elapsed = Machine.timer().getTime() - start;
+    switches = SwitchCountingGrader.getSwitches() - switches;
+
+    long[] turnaround = new long[numJobs];
+    double response = 0, rateSum = 0, rateSquares = 0;
+    for (int i = 0; i < numJobs; i++) {
+      turnaround[i] = jobs[i].finished - jobs[i].forked;
+      response += jobs[i].started - jobs[i].forked;
+
+      double rate = (double) work / Math.max(turnaround[i], 1);
+      rateSum += rate;
+      rateSquares += rate * rate;
+    }
+    Arrays.sort(turnaround);
+
+    double mean = 0;
+    for (long t : turnaround) mean += t;
+    mean /= numJobs;
+
+    long p99 = turnaround[Math.max((int) Math.ceil(0.99 * numJobs) - 1, 0)];
+    double fairness = (rateSum * rateSum) / (numJobs * rateSquares);
+
+    System.out.println(
+        String.format(
+            "%-6s %5d %8.3f %10.0f %10d %10.0f %8.3f %9s",
+            name,
+            numJobs,
+            1000.0 * numJobs / Math.max(elapsed, 1),
+            mean,
+            p99,
+            response / numJobs,
+            fairness,
+            Machine.autoGrader() instanceof SwitchCountingGrader ? "" + switches : "-"));
+  }
+
+  /** The work done by one job of a workload. */
+  private interface Body {
+    /**
+     * Do the work of one job.
+     *
+     * @param i the index of the job within its workload.
+     */
+    void run(int i);
+  }
+
+  private static class Job implements Runnable {
+    private int index;
+    private Body body;
+    private KThread thread;
+    private long forked, started = -1, finished;
+
+    Job(int index, Body body) {
+      this.index = index;
+      this.body = body;
+    }
+
+    public void run() {
+      started = Machine.timer().getTime();
+      body.run(index);
+      finished = Machine.timer().getTime();
+
+      Lib.debug(dbgBench, "finished " + thread + " at " + finished);
+    }
+  }
+}
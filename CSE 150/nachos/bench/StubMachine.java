@@ -0,0 +1,109 @@
+package nachos.bench;
+
+import nachos.machine.Interrupt;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+import nachos.machine.Timer;
+import nachos.security.Privilege;
+import nachos.threads.Scheduler;
+import nachos.threads.ThreadedKernel;
+
+import java.lang.reflect.Field;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * A lightweight stand-in for the Nachos machine. Installs just enough of the hardware (an interrupt
+ * controller and a timer) for <tt>Machine.interrupt()</tt> and <tt>Machine.timer()</tt> to work, so
+ * that a scheduler's thread queues can be exercised without booting the machine, creating TCBs or
+ * starting a kernel.
+ *
+ * <p>
+ *
+ * <p>Interrupts start out disabled and are never enabled, so simulated time never advances and no
+ * interrupt handlers ever run. This satisfies the <tt>ThreadQueue</tt> requirement that all of its
+ * methods be called with interrupts disabled.
+ *
+ * <p>
+ *
+ * <p>This class must never be used while a real machine is running.
+ */
+public final class StubMachine {
+  private static Privilege privilege = null;
+
+  /** Prevent instantiation. */
+  private StubMachine() {}
+
+  /**
+   * Install the stand-in interrupt controller and timer, if they have not already been installed.
+   */
+  public static void install() {
+    if (privilege != null) return;
+
+    privilege = new StubPrivilege();
+    privilege.stats = new Stats();
+
+    Lib.seedRandom(0);
+
+    setMachineField("interrupt", new Interrupt(privilege));
+    setMachineField("timer", new Timer(privilege));
+    // end the " interrupt timer" banner the two devices print; this is not a debug print
+    System.out.println();
+
+    Lib.assertTrue(Machine.interrupt().disabled());
+  }
+
+  /**
+   * Install a new instance of the specified scheduler as <tt>ThreadedKernel.scheduler</tt>. Threads
+   * and thread queues created after this call belong to the new scheduler.
+   *
+   * @param schedulerName the class name of the scheduler.
+   * @return the new scheduler.
+   */
+  public static Scheduler installScheduler(String schedulerName) {
+    install();
+
+    ThreadedKernel.scheduler = (Scheduler) Lib.constructObject(schedulerName);
+    return ThreadedKernel.scheduler;
+  }
+
+  private static void setMachineField(String name, Object value) {
+    try {
+      Field field = Machine.class.getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(null, value);
+    } catch (Exception e) {
+      Lib.assertNotReached("cannot install stub " + name + ": " + e);
+    }
+  }
+
+  /** A privilege that performs every action directly, since there is no security manager. */
+  private static class StubPrivilege extends Privilege {
+    public void doPrivileged(Runnable action) {
+      action.run();
+    }
+
+    // the signatures must match Privilege's, which uses raw types
+    @SuppressWarnings("rawtypes")
+    public Object doPrivileged(PrivilegedAction action) {
+      return action.run();
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Object doPrivileged(PrivilegedExceptionAction action)
+        throws PrivilegedActionException {
+      try {
+        return action.run();
+      } catch (Exception e) {
+        throw new PrivilegedActionException(e);
+      }
+    }
+
+    public void exit(int exitStatus) {
+      invokeExitNotificationHandlers();
+      System.exit(exitStatus);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package nachos.bench;
+
+import nachos.ag.AutoGrader;
+import nachos.threads.KThread;
+
+/**
+ * An autograder that counts context switches. Select it on the command line with <tt>--
+ * nachos.bench.SwitchCountingGrader</tt> so that <tt>SchedulerBenchmark</tt> can report how many
+ * times the CPU changed hands.
+ */
+public class SwitchCountingGrader extends AutoGrader {
+  private static long switches = 0;
+
+  /** Allocate a new switch-counting autograder. */
+  public SwitchCountingGrader() {}
+
+  /**
+   * Return the number of times a thread has been dispatched since Nachos started.
+   *
+   * @return the number of context switches.
+   */
+  public static long getSwitches() {
+    return switches;
+  }
+
+  public void runningThread(KThread thread) {
+    super.runningThread(thread);
+    switches++;
+  }
+}
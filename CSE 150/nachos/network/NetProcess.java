@@ -49,17 +49,15 @@ public class NetProcess extends UserProcess {
 
     Connection connection = new Connection(host, port, link, srcPort);
 
-    int descriptor;
-    for (descriptor = 2; descriptor < falloc.length; ++descriptor) {
-      if (falloc[descriptor].getFile() == null) {
-        falloc[descriptor].setFile(connection);
-      }
+    int descriptor = allocateDescriptor(connection, null);
+    if (descriptor == -1) {
+      return -1;
     }
 
     try {
       MailMessage message = new MailMessage(host, port, link, srcPort, 0, new byte[0]);
       NetKernel.postOffice.send(message);
-      ((Connection)falloc[descriptor].getFile()).setState(Connection.stateSynSent);
+      connection.setState(Connection.stateSynSent);
     } catch (MalformedPacketException e) {
       return -1;
     }
@@ -80,11 +78,9 @@ public class NetProcess extends UserProcess {
     int dstPort = message.srcPort;
     Connection connection = new Connection(dstLink, dstPort, srcLink, port);
     NetKernel.postOffice.portUsed(port);
-    int descriptor;
-    for (descriptor = 2; descriptor < falloc.length; ++descriptor) {
-      if (falloc[descriptor].getFile() == null) {
-        falloc[descriptor].setFile(connection);
-      }
+    int descriptor = allocateDescriptor(connection, null);
+    if (descriptor == -1) {
+      return -1;
     }
     try {
       MailMessage ack = new MailMessage(dstLink, dstPort, srcLink, port, 0, new byte[0]);
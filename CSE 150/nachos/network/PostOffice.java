@@ -25,10 +25,12 @@ public class PostOffice {
 
   private static final char dbgNet = 'n';
   private SynchListWrapper[] queues = new SynchListWrapper[MailMessage.portLimit];
-  private Semaphore messageReceived = new Semaphore(0); // V'd when a message can be dequeued
-  private Semaphore messageSent = new Semaphore(0); // V'd when a message can be queued
-  private Lock sendLock = new Lock();
-  private Lock portLock = new Lock();
+  // V'd when a message can be dequeued
+  private Semaphore messageReceived = new Semaphore(0, "PostOffice.messageReceived");
+  // V'd when a message can be queued
+  private Semaphore messageSent = new Semaphore(0, "PostOffice.messageSent");
+  private Lock sendLock = new Lock("PostOffice.sendLock");
+  private Lock portLock = new Lock("PostOffice.portLock");
 
   /**
    * Allocate a new post office, using an array of <tt>SynchList</tt>s. Register the interrupt
@@ -80,6 +82,49 @@ public class PostOffice {
     return mail;
   }
 
+  /**
+   * Retrieve up to <i>max</i> messages on the specified port, waiting if necessary until at least
+   * one has arrived. All the messages already queued on the port are taken at once.
+   *
+   * @param port the port on which to wait for messages.
+   * @param mail the array where the messages will be stored.
+   * @param offset the index at which to store the first message.
+   * @param max the maximum number of messages to retrieve.
+   * @return the number of messages retrieved.
+   */
+  public int receive(int port, MailMessage[] mail, int offset, int max) {
+    Lib.assertTrue(port >= 0 && port < queues.length);
+
+    Lib.debug(dbgNet, "waiting for up to " + max + " messages on port " + port);
+
+    int amount = queues[port].drainTo(mail, offset, max);
+
+    if (Lib.test(dbgNet)) System.out.println("got " + amount + " messages on port " + port);
+
+    return amount;
+  }
+
+  /**
+   * Retrieve a message on the specified port, waiting at least <i>timeout</i> ticks for one to
+   * arrive if necessary.
+   *
+   * @param port the port on which to wait for a message.
+   * @param timeout the minimum number of clock ticks to wait.
+   * @return the message received, or <tt>null</tt> if none arrived before the wait timed out.
+   */
+  public MailMessage receive(int port, long timeout) {
+    Lib.assertTrue(port >= 0 && port < queues.length);
+
+    Lib.debug(dbgNet, "waiting up to " + timeout + " ticks for mail on port " + port);
+
+    MailMessage mail = (MailMessage) queues[port].removeFirst(timeout);
+
+    if (Lib.test(dbgNet))
+      System.out.println((mail == null ? "timed out" : "got mail") + " on port " + port);
+
+    return mail;
+  }
+
   /** Wait for incoming messages, and then put them in the correct mailbox. */
   private void postalDelivery() {
     while (true) {
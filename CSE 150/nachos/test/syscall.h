@@ -25,6 +25,18 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallSleep		13
+#define syscallGetTime		14
+#define syscallReadv		15
+#define syscallWritev		16
+#define syscallDup		17
+#define syscallDup2		18
+#define syscallFork		19
+#define syscallShmget		20
+#define syscallShmat		21
+#define syscallShmdt		22
+#define syscallPipe		23
+#define syscallIoEnter		24
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -90,6 +102,54 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a new child process that is a copy of the current process: it has
+ * the same memory contents, the same open file descriptors (sharing their file
+ * positions), and continues from the same point, returning from fork().
+ *
+ * Memory is not copied when the child is created. Both processes share every
+ * page until one of them writes to it, and only that page is then copied, so
+ * fork() is fast even for a large program.
+ *
+ * fork() returns the child process's process ID in the parent, which can be
+ * passed to join(), and 0 in the child. On error, returns -1.
+ */
+int fork();
+
+/**
+ * Return the ID of the shared memory segment identified by key, creating it if
+ * it does not exist yet. A new segment is at least size bytes long, rounded up
+ * to a whole number of pages, and initially filled with zeros. Cooperating
+ * processes agree on a key in advance; the key 0 always creates a new segment,
+ * whose ID must be passed to the other processes some other way (for example,
+ * across fork()).
+ *
+ * Returns the segment ID, or -1 if an error occurred (for example, the segment
+ * exists but is smaller than size).
+ */
+int shmget(int key, int size);
+
+/**
+ * Map the shared memory segment with the specified ID into the address space
+ * of the current process. Every process that maps a segment sees the same
+ * memory, so data written by one is immediately visible to the others.
+ *
+ * A segment is destroyed once every process that mapped it has unmapped it or
+ * exited. A segment that is never mapped is destroyed when the process that
+ * created it exits. A child created by fork() keeps its parent's segments
+ * mapped.
+ *
+ * Returns the address of the segment, or -1 if an error occurred.
+ */
+char *shmat(int id);
+
+/**
+ * Unmap the shared memory segment mapped at address by shmat().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int shmdt(char *address);
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -257,6 +317,164 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * A buffer for readv() and writev(): iov_len bytes starting at iov_base.
+ */
+struct iovec {
+    char *iov_base;
+    int iov_len;
+};
+
+/**
+ * Read data from the file or stream referred to by fileDescriptor into the
+ * iovcnt buffers described by iov, filling each buffer completely before
+ * moving on to the next. Behaves like a single read() into one buffer the
+ * size of all of them together, and returns the same way.
+ *
+ * At most 64 buffers may be passed in one call.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write the data in the iovcnt buffers described by iov, in order, to the
+ * file or stream referred to by fileDescriptor. Behaves like a single write()
+ * of all the buffers concatenated, so a header and a body can be sent with one
+ * system call.
+ *
+ * At most 64 buffers may be passed in one call.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Return a new file descriptor referring to the same file or stream as
+ * fileDescriptor. The descriptor closed most recently is reused if there is
+ * one; otherwise the table of descriptors grows by one. Both descriptors share
+ * the file position, and the file stays open until both are closed.
+ *
+ * A process may have up to 1024 file descriptors open at once.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Make newFileDescriptor refer to the same file or stream as fileDescriptor,
+ * as dup() does. If newFileDescriptor was open, it is closed first.
+ *
+ * Since a child process started by exec() shares its parent's descriptors 0
+ * and 1, dup2() can redirect a child's input or output: for example, dup2() an
+ * open file onto descriptor 1 before calling exec().
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
+/**
+ * Create a pipe: a buffer in the kernel that carries bytes from one process to
+ * another without going through the file system. A file descriptor for the
+ * read end is stored in fileDescriptors[0], and one for the write end in
+ * fileDescriptors[1]. Combined with dup2() and exec(), a pipe can connect the
+ * output of one program to the input of another.
+ *
+ * The pipe holds up to 4096 bytes. read() waits until at least one byte is
+ * available and returns what it can; write() waits for room until all the
+ * bytes are written. Once every descriptor for the write end is closed, read()
+ * returns 0 when the pipe is empty; once every descriptor for the read end is
+ * closed, write() fails.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fileDescriptors[2]);
+
+/* Operations for asynchronous I/O, in io_sqe.opcode. */
+#define IO_READ		0
+#define IO_WRITE	1
+
+/**
+ * A submission entry: read or write len bytes at buf, from or to the file or
+ * stream referred to by fd. If offset is -1 the transfer uses and advances the
+ * descriptor's position, as read() and write() do; otherwise it happens at
+ * that offset in the file, and leaves the position alone. user_data is
+ * returned unchanged in the operation's completion.
+ */
+struct io_sqe {
+    int opcode;
+    int fd;
+    void *buf;
+    int len;
+    int offset;
+    int user_data;
+};
+
+/**
+ * A completion entry: the user_data of a finished operation, and its result,
+ * as read() or write() would have returned it.
+ */
+struct io_cqe {
+    int user_data;
+    int res;
+};
+
+/**
+ * A pair of rings for asynchronous I/O. sq and cq each point to an array of
+ * entries elements, where entries is a power of two no larger than 256. The
+ * rings are indexed by the free-running counters below, modulo entries:
+ *
+ *	the process adds submissions at sq_tail, the kernel takes them at sq_head;
+ *	the kernel adds completions at cq_tail, the process takes them at cq_head.
+ */
+struct io_ring {
+    unsigned int entries;
+    unsigned int sq_head, sq_tail;
+    unsigned int cq_head, cq_tail;
+    struct io_sqe *sq;
+    struct io_cqe *cq;
+};
+
+/**
+ * Submit every entry added to ring's submission ring since the last call, then
+ * wait until the completion ring holds at least minComplete completions, or no
+ * operation is left in flight. Operations run in the background, so a single
+ * thread can keep many reads and writes in flight; those on the same file run
+ * one at a time, in order. A process has one ring: the first call sets it up,
+ * and every later call must pass the same ring. The ring must stay in place
+ * until the process exits, which waits for operations already started.
+ *
+ * Returns the number of entries submitted, or -1 if an error occurred.
+ */
+int io_enter(struct io_ring *ring, int minComplete);
+
+/**
+ * Suspend execution of the current process for at least the specified number
+ * of clock ticks. Other processes run in the meantime; the process is woken up
+ * by the first timer interrupt after the time has passed, so it may sleep up
+ * to one timer period (about 500 ticks) longer than requested.
+ *
+ * Returns 0 on success, or -1 if ticks is negative.
+ */
+int sleep(int ticks);
+
+/**
+ * Return the number of clock ticks since Nachos started, as maintained by the
+ * kernel's statistics (Stats.totalTicks). Only the low 32 bits are returned.
+ */
+unsigned int gettime();
+
+/* The kernel also publishes the clock in a read-only page mapped into every
+ * process, so it can be read without a system call. The page is updated on
+ * every timer interrupt, and holds the low 32 bits of the tick count followed
+ * by the high 32 bits. Its address is passed to main() as a third argument:
+ *
+ *	int main(int argc, char *argv[], volatile unsigned int *clock)
+ *
+ * A program that reads both words should read the high word again after the
+ * low word, and retry if it changed.
+ */
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,15 +1,34 @@
 package nachos.threads;
 
+import nachos.machine.Config;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-import java.util.PriorityQueue;
+import java.util.TreeMap;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep until a certain
  * time.
+ *
+ * <p>
+ *
+ * <p>Besides blocking in <tt>waitUntil()</tt>, kernel code can <tt>schedule()</tt> a callback to run
+ * in the timer interrupt handler after a delay. Each pending wake-up or callback is a
+ * <tt>Timeout</tt>, which can be cancelled in constant time; this suits retransmission and timeout
+ * logic, where most timers are cancelled before they expire.
+ *
+ * <p>
+ *
+ * <p>Timeouts are grouped by expiry time, and the groups are kept sorted. If the
+ * <tt>Alarm.slack</tt> configuration key is set to a positive number of ticks, expiry times are
+ * rounded up to a multiple of it, so that timeouts due close together share a group and are
+ * handled together in the same timer interrupt. A timeout then fires up to <tt>Alarm.slack</tt>
+ * ticks late, but never early.
  */
 public class Alarm {
-  private PriorityQueue<ThreadWake> readyQueue = new PriorityQueue<ThreadWake>();
+  /** The pending timeouts, grouped by the time they expire. */
+  private TreeMap<Long, Group> groups = new TreeMap<Long, Group>();
+  private long slack;
 
   /**
    * Allocate a new Alarm. Set the machine's timer interrupt handler to this alarm's callback.
@@ -19,6 +38,8 @@ public class Alarm {
    * <p><b>Note</b>: Nachos will not function correctly with more than one alarm.
    */
   public Alarm() {
+    slack = Math.max(Config.getInteger("Alarm.slack", 0), 1);
+
     Machine.timer()
         .setInterruptHandler(
             new Runnable() {
@@ -30,15 +51,25 @@ public class Alarm {
 
   /**
    * The timer interrupt handler. This is called by the machine's timer periodically (approximately
-   * every 500 clock ticks). Causes the current thread to yield, forcing a context switch if there
-   * is another thread that should be run.
+   * every 500 clock ticks). Fires every timeout that has expired, then causes the current thread to
+   * yield, forcing a context switch if there is another thread that should be run.
    */
   public void timerInterrupt() {
-
     boolean intStatus = Machine.interrupt().disable();
 
-    while (!readyQueue.isEmpty() && readyQueue.peek().wake <= Machine.timer().getTime())
-      readyQueue.poll().thread.ready();
+    long time = Machine.timer().getTime();
+    while (!groups.isEmpty() && groups.firstKey() <= time) {
+      Group group = groups.pollFirstEntry().getValue();
+      // unlink each timeout just before it fires, so a callback can still cancel the rest
+      while (group.first != null) {
+        Timeout t = group.first;
+        group.first = t.next;
+        if (t.next != null) t.next.prev = null;
+        t.group = null;
+        t.next = null;
+        t.fire();
+      }
+    }
 
     Machine.interrupt().restore(intStatus);
 
@@ -66,24 +97,150 @@ public class Alarm {
   public void waitUntil(long x) {
     boolean intStatus = Machine.interrupt().disable();
 
-    long wakeTime = Machine.timer().getTime() + x;
-    readyQueue.add(new ThreadWake(KThread.currentThread(), wakeTime));
+    add(new Timeout(x, KThread.currentThread(), null, null));
     KThread.sleep();
 
     Machine.interrupt().restore(intStatus);
   }
 
-  private class ThreadWake implements Comparable<ThreadWake> {
-    KThread thread;
-    Long wake;
+  /**
+   * Arrange for <i>callback</i> to be run in the timer interrupt handler, at least <i>x</i> ticks
+   * from now. The callback runs with interrupts disabled, and must not block.
+   *
+   * @param x the minimum number of clock ticks to wait.
+   * @param callback the code to run when the timeout expires.
+   * @return a handle that can be used to cancel the callback.
+   */
+  public Timeout schedule(long x, Runnable callback) {
+    Lib.assertTrue(callback != null);
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    Timeout t = new Timeout(x, null, null, callback);
+    add(t);
+
+    Machine.interrupt().restore(intStatus);
+
+    return t;
+  }
+
+  /**
+   * Put the current thread to sleep until either it is given access by <i>queue</i>, or at least
+   * <i>x</i> ticks have passed. The current thread must already be waiting for access to
+   * <i>queue</i>, and interrupts must be disabled. If the timeout expires first, the thread is
+   * removed from <i>queue</i> in the timer interrupt handler and woken up without access.
+   *
+   * @param queue the queue the current thread is waiting on.
+   * @param x the minimum number of clock ticks to wait.
+   * @return <tt>true</tt> if the thread was given access, or <tt>false</tt> if it timed out.
+   */
+  boolean waitOn(ThreadQueue queue, long x) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    Timeout t = new Timeout(x, KThread.currentThread(), queue, null);
+    add(t);
+    KThread.sleep();
+
+    if (!t.timedOut) t.cancel();
+
+    return !t.timedOut;
+  }
+
+  /** Add a new timeout to the group for its expiry time. Interrupts must be disabled. */
+  private void add(Timeout t) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    // round up, so that a timeout never fires before it is due
+    long key = (t.wake + slack - 1) / slack * slack;
+
+    Group group = groups.get(key);
+    if (group == null) {
+      group = new Group(key);
+      groups.put(key, group);
+    }
+
+    t.group = group;
+    t.next = group.first;
+    if (group.first != null) group.first.prev = t;
+    group.first = t;
+  }
+
+  /** The timeouts that expire at the same time. */
+  private static class Group {
+    long time;
+    Timeout first = null;
+
+    Group(long time) {
+      this.time = time;
+    }
+  }
+
+  /** A pending wake-up or callback. */
+  public class Timeout {
+    private long wake;
+    private KThread thread;
+    /** The queue a thread in <tt>waitOn()</tt> is waiting on, or <tt>null</tt>. */
+    private ThreadQueue queue;
+    private Runnable callback;
+    private boolean timedOut = false;
+    /** The group this timeout belongs to, or <tt>null</tt> once it has fired or been cancelled. */
+    private Group group = null;
+    private Timeout prev = null, next = null;
+
+    private Timeout(long x, KThread thread, ThreadQueue queue, Runnable callback) {
+      this.wake = Machine.timer().getTime() + x;
+      this.thread = thread;
+      this.queue = queue;
+      this.callback = callback;
+    }
+
+    /**
+     * Cancel this timeout, if it has not fired yet.
+     *
+     * @return <tt>true</tt> if the timeout was pending and has been cancelled.
+     */
+    public boolean cancel() {
+      boolean intStatus = Machine.interrupt().disable();
+
+      boolean pending = (group != null);
+      if (pending) {
+        if (prev != null) prev.next = next;
+        else group.first = next;
+        if (next != null) next.prev = prev;
+        // a group that is firing has already been taken out of the map
+        if (group.first == null && groups.get(group.time) == group) groups.remove(group.time);
+
+        group = null;
+        prev = next = null;
+      }
+
+      Machine.interrupt().restore(intStatus);
+
+      return pending;
+    }
+
+    /**
+     * Test if this timeout has neither fired nor been cancelled.
+     *
+     * @return <tt>true</tt> if this timeout is pending.
+     */
+    public boolean isPending() {
+      return (group != null);
+    }
 
-    ThreadWake(KThread t, long w) {
-      this.thread = t;
-      this.wake = w;
+    /**
+     * Return the time at which this timeout is due, before any rounding for slack.
+     *
+     * @return the time this timeout expires, in ticks.
+     */
+    public long getTime() {
+      return wake;
     }
 
-    public int compareTo(ThreadWake t) {
-      return Long.valueOf(wake).compareTo(Long.valueOf(t.wake));
+    private void fire() {
+      if (callback != null) callback.run();
+      // a thread in waitOn() only times out if it is still waiting on its queue
+      else if (queue == null || (timedOut = queue.remove(thread))) thread.ready();
     }
   }
 }
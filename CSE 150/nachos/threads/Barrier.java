@@ -0,0 +1,67 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A <tt>Barrier</tt> makes a fixed number of threads, the <i>parties</i>, wait for each other. Each
+ * thread calls <tt>await()</tt>, which waits until all the parties have called it; the last one to
+ * arrive wakes up all the others. The barrier then resets, so the same threads can use it again for
+ * their next phase of work.
+ *
+ * <p>
+ *
+ * <p>Waiting threads are kept on a scheduler thread queue, and are all moved to the ready queue in
+ * one pass, with interrupts disabled once, in the order the scheduler chooses.
+ */
+public class Barrier {
+  private int parties;
+  private int arrived = 0;
+  private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+  /**
+   * Allocate a new barrier.
+   *
+   * @param parties the number of threads that must call <tt>await()</tt> before any of them
+   *     return. Must be positive.
+   */
+  public Barrier(int parties) {
+    Lib.assertTrue(parties > 0);
+
+    this.parties = parties;
+  }
+
+  /**
+   * Wait until all parties have called <tt>await()</tt> on this barrier.
+   *
+   * @return the order in which the current thread arrived, from <tt>0</tt> for the first thread to
+   *     <tt>parties - 1</tt> for the thread that released the others.
+   */
+  public int await() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    int index = arrived++;
+
+    if (arrived < parties) {
+      waitQueue.waitForAccess(KThread.currentThread());
+      KThread.sleep();
+    } else {
+      arrived = 0;
+      for (KThread thread = waitQueue.nextThread(); thread != null; thread = waitQueue.nextThread())
+        thread.ready();
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    return index;
+  }
+
+  /**
+   * Return the number of threads that must call <tt>await()</tt> to trip this barrier.
+   *
+   * @return the number of parties.
+   */
+  public int getParties() {
+    return parties;
+  }
+}
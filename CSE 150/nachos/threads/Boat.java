@@ -12,7 +12,7 @@ public class Boat {
   static Island boatPlace = Island.Oahu;
   static Island personPlace = Island.Oahu;
   static Communicator comm = new Communicator();
-  static Lock boatLock = new Lock();
+  static Lock boatLock = new Lock("Boat.boatLock");
   static Condition2 OahuWait = new Condition2(boatLock);
   static Condition2 MolokaiWait = new Condition2(boatLock);
   static Condition2 boatFull = new Condition2(boatLock);
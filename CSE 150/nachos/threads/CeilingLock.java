@@ -0,0 +1,110 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A <tt>CeilingLock</tt> is a lock that uses the immediate priority ceiling protocol instead of
+ * priority donation. Each lock is given a <i>ceiling</i>, the highest priority of any thread that
+ * will ever acquire it. As soon as a thread acquires the lock, its priority is raised to the
+ * ceiling, and its original priority is restored when it releases the lock.
+ *
+ * <p>
+ *
+ * <p>Because a holder already runs at the ceiling, no waiting thread can have a higher priority, so
+ * the wait queue does not transfer priority and acquiring or releasing the lock never walks a
+ * donation chain. If every lock a thread may block on is a ceiling lock, a thread can be blocked by
+ * at most one lower-priority thread.
+ *
+ * <p>
+ *
+ * <p>The API is the same as that of <tt>Lock</tt>. When a thread holds several ceiling locks at
+ * once, it should release them in the reverse of the order in which it acquired them.
+ *
+ * @see nachos.threads.Lock
+ */
+public class CeilingLock {
+  private KThread lockHolder = null;
+  private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+  private int ceiling;
+  private int savedPriority;
+
+  /**
+   * Allocate a new ceiling lock. The lock will initially be <i>free</i>.
+   *
+   * @param ceiling the priority given to the thread holding this lock. Must be a valid priority for
+   *     the current scheduler.
+   */
+  public CeilingLock(int ceiling) {
+    this.ceiling = ceiling;
+  }
+
+  /**
+   * Return the ceiling priority of this lock.
+   *
+   * @return the priority given to the thread holding this lock.
+   */
+  public int getCeiling() {
+    return ceiling;
+  }
+
+  /**
+   * Atomically acquire this lock, raising the current thread to the ceiling priority. The current
+   * thread must not already hold this lock.
+   */
+  public void acquire() {
+    Lib.assertTrue(!isHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+
+    if (lockHolder != null) {
+      waitQueue.waitForAccess(thread);
+      KThread.sleep();
+    } else {
+      waitQueue.acquire(thread);
+      lockHolder = thread;
+      raise(thread);
+    }
+
+    Lib.assertTrue(lockHolder == thread);
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Atomically release this lock, restoring the current thread's priority and allowing other threads
+   * to acquire it.
+   */
+  public void release() {
+    Lib.assertTrue(isHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    ThreadedKernel.scheduler.setPriority(lockHolder, savedPriority);
+
+    if ((lockHolder = waitQueue.nextThread()) != null) {
+      raise(lockHolder);
+      lockHolder.ready();
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Test if the current thread holds this lock.
+   *
+   * @return true if the current thread holds this lock.
+   */
+  public boolean isHeldByCurrentThread() {
+    return (lockHolder == KThread.currentThread());
+  }
+
+  /** Raise the new holder of this lock to the ceiling, remembering its original priority. */
+  private void raise(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    savedPriority = ThreadedKernel.scheduler.getPriority(thread);
+    if (ceiling > savedPriority) ThreadedKernel.scheduler.setPriority(thread, ceiling);
+  }
+}
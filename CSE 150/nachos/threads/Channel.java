@@ -0,0 +1,164 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+
+/**
+ * A <i>channel</i> is a bounded buffer of 32-bit words shared between producer and consumer
+ * threads. Unlike a <tt>Communicator</tt>, a producer does not wait for a consumer to take each
+ * word; it only blocks when the buffer is full, and a consumer only blocks when it is empty.
+ *
+ * <p>
+ *
+ * <p>Words can be transferred one at a time with <tt>put()</tt> and <tt>take()</tt>, or in batches
+ * with <tt>putAll()</tt> and <tt>drainTo()</tt>, which move as many words as possible for each
+ * acquisition of the channel's lock. Each transfer wakes at most as many waiting threads as it can
+ * satisfy, rather than waking every waiter.
+ */
+public class Channel {
+  private int[] buffer;
+  private int head = 0;
+  private int count = 0;
+  private Lock lock;
+  private Condition2 notEmpty;
+  private Condition2 notFull;
+  /** The number of sleeping consumers and producers that have not yet been woken. */
+  private int waitingTakers = 0, waitingPutters = 0;
+
+  /**
+   * Allocate a new channel.
+   *
+   * @param capacity the maximum number of words the channel can buffer. Must be positive.
+   */
+  public Channel(int capacity) {
+    Lib.assertTrue(capacity > 0);
+
+    buffer = new int[capacity];
+    lock = new Lock();
+    notEmpty = new Condition2(lock);
+    notFull = new Condition2(lock);
+  }
+
+  /**
+   * Return the maximum number of words this channel can buffer.
+   *
+   * @return the capacity of this channel.
+   */
+  public int capacity() {
+    return buffer.length;
+  }
+
+  /**
+   * Add a word to the channel, waiting while the channel is full.
+   *
+   * @param word the word to add.
+   */
+  public void put(int word) {
+    lock.acquire();
+
+    while (count == buffer.length) {
+      waitingPutters++;
+      notFull.sleep();
+    }
+
+    buffer[(head + count) % buffer.length] = word;
+    count++;
+    wakeTakers(1);
+
+    lock.release();
+  }
+
+  /**
+   * Add all of the specified words to the channel, in order. Whenever the channel is full, waits
+   * for consumers to make room and then adds as many of the remaining words as will fit.
+   *
+   * @param words the array containing the words to add.
+   * @param offset the index of the first word to add.
+   * @param length the number of words to add.
+   */
+  public void putAll(int[] words, int offset, int length) {
+    Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= words.length);
+
+    lock.acquire();
+
+    while (length > 0) {
+      while (count == buffer.length) {
+        waitingPutters++;
+        notFull.sleep();
+      }
+
+      int amount = Math.min(length, buffer.length - count);
+      for (int i = 0; i < amount; i++) buffer[(head + count + i) % buffer.length] = words[offset + i];
+
+      count += amount;
+      offset += amount;
+      length -= amount;
+      wakeTakers(amount);
+    }
+
+    lock.release();
+  }
+
+  /**
+   * Remove a word from the channel, waiting while the channel is empty.
+   *
+   * @return the word removed.
+   */
+  public int take() {
+    lock.acquire();
+
+    while (count == 0) {
+      waitingTakers++;
+      notEmpty.sleep();
+    }
+
+    int word = buffer[head];
+    head = (head + 1) % buffer.length;
+    count--;
+    wakePutters(1);
+
+    lock.release();
+
+    return word;
+  }
+
+  /**
+   * Remove up to <i>max</i> words from the channel, waiting while the channel is empty. Returns as
+   * soon as at least one word has been removed.
+   *
+   * @param words the array where the words will be stored.
+   * @param offset the index at which to store the first word.
+   * @param max the maximum number of words to remove. Must be positive.
+   * @return the number of words removed.
+   */
+  public int drainTo(int[] words, int offset, int max) {
+    Lib.assertTrue(offset >= 0 && max > 0 && offset + max <= words.length);
+
+    lock.acquire();
+
+    while (count == 0) {
+      waitingTakers++;
+      notEmpty.sleep();
+    }
+
+    int amount = Math.min(max, count);
+    for (int i = 0; i < amount; i++) words[offset + i] = buffer[(head + i) % buffer.length];
+
+    head = (head + amount) % buffer.length;
+    count -= amount;
+    wakePutters(amount);
+
+    lock.release();
+
+    return amount;
+  }
+
+  /** Wake at most <i>n</i> consumers, since at most <i>n</i> words were just added. */
+  private void wakeTakers(int n) {
+    waitingTakers -= notEmpty.wake(Math.min(n, waitingTakers));
+  }
+
+  /** Wake at most <i>n</i> producers, since at most <i>n</i> slots were just freed. */
+  private void wakePutters(int n) {
+    waitingPutters -= notFull.wake(Math.min(n, waitingPutters));
+  }
+}
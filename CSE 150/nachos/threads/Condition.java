@@ -91,6 +91,31 @@ public class Condition {
     conditionLock.acquire();
   }
 
+  /**
+   * Atomically release the associated lock and go to sleep on this condition variable until another
+   * thread wakes it using <tt>wake()</tt>, or until at least <i>timeout</i> ticks have passed. The
+   * current thread must hold the associated lock, and will reacquire it before returning either
+   * way.
+   *
+   * @param timeout the minimum number of clock ticks to wait.
+   * @return <tt>true</tt> if the thread was woken, or <tt>false</tt> if the wait timed out.
+   */
+  public boolean sleep(long timeout) {
+    Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+    Semaphore waiter = new Semaphore(0);
+    waitQueue.add(waiter);
+
+    conditionLock.release();
+    boolean woken = waiter.tryP(timeout);
+    conditionLock.acquire();
+
+    // a wake() may have chosen this waiter after the timeout, but before the lock was reacquired
+    if (!woken) woken = !waitQueue.remove(waiter);
+
+    return woken;
+  }
+
   /**
    * Wake up at most one thread sleeping on this condition variable. The current thread must hold
    * the associated lock.
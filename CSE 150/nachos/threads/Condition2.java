@@ -15,6 +15,7 @@ import nachos.machine.Machine;
 public class Condition2 {
   private Lock conditionLock;
   private ThreadQueue waitQueue;
+  /** The number of threads sleeping on <tt>waitQueue</tt>. */
   private int queueLength;
 
   /**
@@ -38,9 +39,10 @@ public class Condition2 {
   public void sleep() {
     Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+    // join the wait queue before releasing the lock, so that a wake() cannot slip in between
+    boolean intStatus = Machine.interrupt().disable();
     conditionLock.release();
 
-    boolean intStatus = Machine.interrupt().disable();
     waitQueue.waitForAccess(KThread.currentThread());
     queueLength++;
     KThread.sleep();
@@ -49,19 +51,66 @@ public class Condition2 {
     conditionLock.acquire();
   }
 
+  /**
+   * Atomically release the associated lock and go to sleep on this condition variable until another
+   * thread wakes it using <tt>wake()</tt>, or until at least <i>timeout</i> ticks have passed. The
+   * current thread must hold the associated lock, and will reacquire it before returning either
+   * way.
+   *
+   * @param timeout the minimum number of clock ticks to wait.
+   * @return <tt>true</tt> if the thread was woken, or <tt>false</tt> if the wait timed out.
+   */
+  public boolean sleep(long timeout) {
+    Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+    conditionLock.release();
+
+    waitQueue.waitForAccess(KThread.currentThread());
+    queueLength++;
+    boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+    if (!woken) queueLength--;
+    Machine.interrupt().restore(intStatus);
+
+    conditionLock.acquire();
+
+    return woken;
+  }
+
   /**
    * Wake up at most one thread sleeping on this condition variable. The current thread must hold
    * the associated lock.
    */
   public void wake() {
+    wake(1);
+  }
+
+  /**
+   * Wake up at most <i>n</i> threads sleeping on this condition variable, moving them all to the
+   * ready queue with interrupts disabled only once. The current thread must hold the associated
+   * lock.
+   *
+   * @param n the maximum number of threads to wake.
+   * @return the number of threads woken.
+   */
+  public int wake(int n) {
     Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-    if (0 <= queueLength--) {
-      boolean intStatus = Machine.interrupt().disable();
-      KThread thread = waitQueue.nextThread();
-      if (thread != null) thread.ready();
-      Machine.interrupt().restore(intStatus);
+    if (n <= 0 || queueLength == 0) return 0;
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    int woken = 0;
+    KThread thread;
+    while (woken < n && (thread = waitQueue.nextThread()) != null) {
+      thread.ready();
+      woken++;
     }
+    queueLength -= woken;
+
+    Machine.interrupt().restore(intStatus);
+
+    return woken;
   }
 
   /**
@@ -69,8 +118,6 @@ public class Condition2 {
    * associated lock.
    */
   public void wakeAll() {
-    Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-
-    while (queueLength > 0) wake();
+    wake(queueLength);
   }
 }
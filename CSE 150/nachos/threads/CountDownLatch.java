@@ -0,0 +1,77 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a number of events have happened. It has a
+ * count, set when it is created, and two operations:
+ *
+ * <p>
+ *
+ * <ul>
+ *   <li><tt>countDown()</tt>: decrement the count. When it reaches zero, wake up every waiting
+ *       thread.
+ *   <li><tt>await()</tt>: wait until the count is zero.
+ * </ul>
+ *
+ * <p>
+ *
+ * <p>Once the count reaches zero it stays there, and <tt>await()</tt> returns immediately. A thread
+ * that forks several workers can use a latch to wait for all of them at once, instead of joining
+ * them one at a time.
+ *
+ * <p>
+ *
+ * <p>Waiting threads are kept on a scheduler thread queue, and are all moved to the ready queue in
+ * one pass, with interrupts disabled once, in the order the scheduler chooses.
+ */
+public class CountDownLatch {
+  private int count;
+  private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+  /**
+   * Allocate a new latch.
+   *
+   * @param count the number of <tt>countDown()</tt> calls needed to release waiting threads. Must
+   *     not be negative.
+   */
+  public CountDownLatch(int count) {
+    Lib.assertTrue(count >= 0);
+
+    this.count = count;
+  }
+
+  /** Atomically decrement the count, and wake up all waiting threads if it reaches zero. */
+  public void countDown() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    if (count > 0 && --count == 0) {
+      for (KThread thread = waitQueue.nextThread(); thread != null; thread = waitQueue.nextThread())
+        thread.ready();
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /** Wait until the count reaches zero. */
+  public void await() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    if (count > 0) {
+      waitQueue.waitForAccess(KThread.currentThread());
+      KThread.sleep();
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Return the current count. By the time the caller uses the value, it may already be lower.
+   *
+   * @return the number of <tt>countDown()</tt> calls still needed.
+   */
+  public int getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,86 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+import java.util.HashMap;
+
+/**
+ * Detects deadlocks among threads waiting for <tt>Lock</tt>s. The detector keeps the <i>wait-for
+ * graph</i>: an edge from each thread blocked in <tt>Lock.acquire()</tt> to the lock it is waiting
+ * for, and from each lock to the thread holding it. Since a thread waits for at most one lock at a
+ * time, the graph is a set of chains, and a new edge can only close a cycle through the thread that
+ * is about to wait. Each wait therefore only has to follow the chain of holders starting at the
+ * lock being waited for, rather than search the whole graph.
+ *
+ * <p>
+ *
+ * <p>When a cycle is found, the detector stops Nachos with a report naming every thread in the
+ * cycle and the name of each lock in it (or where it was created), instead of leaving the idle
+ * thread to spin forever. Timed waits (<tt>Lock.tryAcquire()</tt>) are not recorded, since they end
+ * on their own.
+ *
+ * <p>
+ *
+ * <p>Detection is enabled by setting the <tt>ThreadedKernel.deadlockDetector</tt> configuration key
+ * to <tt>true</tt>.
+ */
+public class DeadlockDetector {
+  private static final char dbgDeadlock = 'k';
+  /** The lock each thread is blocked on. */
+  private HashMap<KThread, Lock> waitingFor = new HashMap<KThread, Lock>();
+
+  /** Allocate a new deadlock detector. */
+  public DeadlockDetector() {}
+
+  /**
+   * Record that <i>thread</i> is about to sleep waiting for <i>lock</i>, and check whether this
+   * closes a cycle in the wait-for graph. If it does, report the cycle and stop Nachos. Interrupts
+   * must be disabled.
+   *
+   * @param thread the thread that is about to wait.
+   * @param lock the lock it will wait for.
+   */
+  void waitForAccess(KThread thread, Lock lock) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    waitingFor.put(thread, lock);
+
+    Lib.debug(dbgDeadlock, thread + " waits for " + lock + " held by " + lock.getHolder());
+
+    Lock next = lock;
+    KThread holder;
+    while ((holder = next.getHolder()) != null && holder != thread) {
+      next = waitingFor.get(holder);
+      if (next == null) return;
+    }
+
+    if (holder == thread) Lib.assertNotReached(report(thread));
+  }
+
+  /**
+   * Record that <i>thread</i> is no longer waiting for a lock, because it was given the lock.
+   * Interrupts must be disabled.
+   *
+   * @param thread the thread that stopped waiting.
+   */
+  void acquire(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    waitingFor.remove(thread);
+  }
+
+  /** Describe the cycle in the wait-for graph that passes through <i>thread</i>. */
+  private String report(KThread thread) {
+    StringBuilder s = new StringBuilder("deadlock detected:\n");
+
+    KThread t = thread;
+    do {
+      Lock lock = waitingFor.get(t);
+      s.append("  ").append(t).append(" waits for ").append(lock).append(", held by\n");
+      t = lock.getHolder();
+    } while (t != thread);
+
+    return s.append("  ").append(thread).toString();
+  }
+}
@@ -0,0 +1,99 @@
+package nachos.threads;
+
+import nachos.machine.Machine;
+
+/**
+ * An <tt>Event</tt> is a flag that threads can wait for. It is either <i>set</i> or <i>clear</i>,
+ * and starts out clear. It has three operations:
+ *
+ * <p>
+ *
+ * <ul>
+ *   <li><tt>set()</tt>: set the event, waking up waiting threads.
+ *   <li><tt>reset()</tt>: clear the event.
+ *   <li><tt>await()</tt>: wait until the event is set.
+ * </ul>
+ *
+ * <p>
+ *
+ * <p>A <i>manual-reset</i> event stays set until <tt>reset()</tt> is called. Setting it wakes every
+ * waiting thread, and until it is reset <tt>await()</tt> returns immediately, so it can signal a
+ * one-time occurrence such as the end of a simulation. An <i>auto-reset</i> event releases exactly
+ * one thread each time it is set: either the next waiting thread, or, if no thread is waiting, the
+ * next thread to call <tt>await()</tt>. It is then clear again.
+ *
+ * <p>
+ *
+ * <p>Waiting threads are kept on a scheduler thread queue. Setting a manual-reset event moves them
+ * all to the ready queue in one pass, with interrupts disabled once.
+ */
+public class Event {
+  private boolean autoReset;
+  private boolean set = false;
+  private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+  /** Allocate a new manual-reset event. The event will initially be clear. */
+  public Event() {
+    this(false);
+  }
+
+  /**
+   * Allocate a new event. The event will initially be clear.
+   *
+   * @param autoReset <tt>true</tt> if the event should release one thread and clear itself each
+   *     time it is set, or <tt>false</tt> if it should stay set until <tt>reset()</tt>.
+   */
+  public Event(boolean autoReset) {
+    this.autoReset = autoReset;
+  }
+
+  /**
+   * Atomically set this event. A manual-reset event wakes up every waiting thread; an auto-reset
+   * event wakes up at most one, and stays set only if there was none.
+   */
+  public void set() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    if (autoReset) {
+      KThread thread = waitQueue.nextThread();
+      if (thread != null) thread.ready();
+      else set = true;
+    } else {
+      set = true;
+      for (KThread thread = waitQueue.nextThread(); thread != null; thread = waitQueue.nextThread())
+        thread.ready();
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /** Atomically clear this event. */
+  public void reset() {
+    set = false;
+  }
+
+  /**
+   * Wait until this event is set. If it is an auto-reset event, clear it again before returning.
+   */
+  public void await() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    if (set) {
+      if (autoReset) set = false;
+    } else {
+      waitQueue.waitForAccess(KThread.currentThread());
+      KThread.sleep();
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Test if this event is set. By the time the caller uses the value, it may have changed.
+   *
+   * @return <tt>true</tt> if the event is set.
+   */
+  public boolean isSet() {
+    return set;
+  }
+}
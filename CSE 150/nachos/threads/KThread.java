@@ -108,6 +108,29 @@ public class KThread {
     this.target = target;
   }
 
+  /**
+   * Allocate a new <tt>KThread</tt> that has no TCB and no target, and so can never be forked. Used
+   * by <tt>newDetachedThread()</tt>.
+   *
+   * @param name the name to give to this thread.
+   */
+  private KThread(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Allocate a thread that exists only to be placed on thread queues. The thread has no TCB and can
+   * never be forked, so it does not require a running machine. This lets a scheduler's
+   * <tt>ThreadQueue</tt> implementation be driven directly, e.g. by
+   * <tt>nachos.bench.QueueBenchmark</tt>.
+   *
+   * @param name the name to give to the thread.
+   * @return the new thread.
+   */
+  public static KThread newDetachedThread(String name) {
+    return new KThread(name);
+  }
+
   /**
    * Get the current thread.
    *
@@ -25,9 +25,47 @@ import nachos.machine.Machine;
 public class Lock {
   private KThread lockHolder = null;
   private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+  /** The name of this lock, or where it was created if it was unnamed and instrumented. */
+  private String name;
+  private LockProfiler.Profile profile = null;
+  private long acquireTime;
 
   /** Allocate a new lock. The lock will initially be <i>free</i>. */
-  public Lock() {}
+  public Lock() {
+    this(null);
+  }
+
+  /**
+   * Allocate a new lock with a name identifying it in deadlock and lock profiling reports. The lock
+   * will initially be <i>free</i>.
+   *
+   * @param name the name of this lock, or <tt>null</tt> to identify it by where it was created.
+   */
+  public Lock(String name) {
+    if (name == null
+        && (ThreadedKernel.deadlockDetector != null || ThreadedKernel.lockProfiler != null))
+      name = allocationSite(Lock.class);
+
+    this.name = name;
+    if (ThreadedKernel.lockProfiler != null)
+      profile = ThreadedKernel.lockProfiler.register(toString());
+  }
+
+  /**
+   * Return a description of the code that is creating an object of the specified class, for use in
+   * reports. This is the first stack frame outside that class's constructors.
+   *
+   * @param c the class of the object being created.
+   * @return the creation site, in the form <tt>class.method(file:line)</tt>.
+   */
+  static String allocationSite(Class<?> c) {
+    StackTraceElement[] stack = new Throwable().getStackTrace();
+    for (int i = 1; i < stack.length; i++)
+      if (!stack[i].getClassName().equals(c.getName()) || !stack[i].getMethodName().equals("<init>"))
+        return stack[i].toString();
+
+    return "unknown";
+  }
 
   /** Atomically acquire this lock. The current thread must not already hold this lock. */
   public void acquire() {
@@ -35,10 +73,16 @@ public class Lock {
 
     boolean intStatus = Machine.interrupt().disable();
     KThread thread = KThread.currentThread();
+    long start = Machine.timer().getTime();
+    boolean waited = (lockHolder != null);
 
-    if (lockHolder != null) {
+    if (waited) {
       waitQueue.waitForAccess(thread);
+      if (ThreadedKernel.deadlockDetector != null)
+        ThreadedKernel.deadlockDetector.waitForAccess(thread, this);
       KThread.sleep();
+      if (ThreadedKernel.deadlockDetector != null)
+        ThreadedKernel.deadlockDetector.acquire(thread);
     } else {
       waitQueue.acquire(thread);
       lockHolder = thread;
@@ -46,15 +90,54 @@ public class Lock {
 
     Lib.assertTrue(lockHolder == thread);
 
+    if (profile != null) acquired(thread, waited, start);
+
     Machine.interrupt().restore(intStatus);
   }
 
+  /**
+   * Atomically acquire this lock, giving up if it has not become free after at least
+   * <i>timeout</i> ticks. The current thread must not already hold this lock.
+   *
+   * @param timeout the minimum number of clock ticks to wait.
+   * @return <tt>true</tt> if the lock was acquired, or <tt>false</tt> if the wait timed out.
+   */
+  public boolean tryAcquire(long timeout) {
+    Lib.assertTrue(!isHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+    long start = Machine.timer().getTime();
+    boolean waited = (lockHolder != null);
+
+    if (lockHolder == null) {
+      waitQueue.acquire(thread);
+      lockHolder = thread;
+    } else if (timeout > 0) {
+      waitQueue.waitForAccess(thread);
+      ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+    }
+
+    boolean acquired = (lockHolder == thread);
+
+    if (profile != null) {
+      if (acquired) acquired(thread, waited, start);
+      else profile.timedOut(thread, Machine.timer().getTime() - start);
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    return acquired;
+  }
+
   /** Atomically release this lock, allowing other threads to acquire it. */
   public void release() {
     Lib.assertTrue(isHeldByCurrentThread());
 
     boolean intStatus = Machine.interrupt().disable();
 
+    if (profile != null) profile.released(lockHolder, Machine.timer().getTime() - acquireTime);
+
     if ((lockHolder = waitQueue.nextThread()) != null) lockHolder.ready();
 
     Machine.interrupt().restore(intStatus);
@@ -68,4 +151,28 @@ public class Lock {
   public boolean isHeldByCurrentThread() {
     return (lockHolder == KThread.currentThread());
   }
+
+  /**
+   * Return the thread holding this lock, for the deadlock detector.
+   *
+   * @return the lock holder, or <tt>null</tt> if the lock is free.
+   */
+  KThread getHolder() {
+    return lockHolder;
+  }
+
+  /** Record an acquisition in this lock's profile. Interrupts must be disabled. */
+  private void acquired(KThread thread, boolean waited, long start) {
+    acquireTime = Machine.timer().getTime();
+    profile.acquired(thread, waited, acquireTime - start);
+  }
+
+  /**
+   * Describe this lock for debugging purposes, by its name or where it was created if known.
+   *
+   * @return a description of this lock.
+   */
+  public String toString() {
+    return "lock " + (name != null ? name : "@" + Integer.toHexString(hashCode()));
+  }
 }
@@ -0,0 +1,281 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures contention on <tt>Lock</tt>s and <tt>Semaphore</tt>s. Every lock and semaphore created
+ * while profiling is enabled is assigned a <tt>Profile</tt>, identified by the name it was given
+ * when it was created or else by where it was created. Locks or semaphores with the same name share
+ * a profile, so that, for example, the semaphores <tt>Condition.sleep()</tt> allocates for each
+ * waiter are counted together. A profile counts acquisitions (<tt>P()</tt>s, for a
+ * semaphore), how many of them had to wait, and the total and longest time spent waiting, all in
+ * simulated clock ticks. For locks it also keeps a histogram of how long the lock was held. Waiting
+ * and holding time are both broken down by thread name.
+ *
+ * <p>
+ *
+ * <p>Profiling is enabled by setting the <tt>ThreadedKernel.lockProfiler</tt> configuration key to
+ * <tt>true</tt>. The profiles can be queried at any time with <tt>getProfiles()</tt>, and are
+ * printed, most contended first, when the kernel terminates.
+ */
+public class LockProfiler {
+  /** The number of buckets in each hold time histogram. */
+  public static final int histogramBuckets = 24;
+
+  private HashMap<String, Profile> profiles = new HashMap<String, Profile>();
+
+  /** Allocate a new lock profiler. */
+  public LockProfiler() {}
+
+  /**
+   * Return the profile for a newly allocated lock or semaphore, creating it if no other lock or
+   * semaphore has the same name.
+   *
+   * @param name the name identifying the lock or semaphore.
+   * @return the profile to record its use in.
+   */
+  Profile register(String name) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    Profile profile = profiles.get(name);
+    if (profile == null) {
+      profile = new Profile(name);
+      profiles.put(name, profile);
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    return profile;
+  }
+
+  /**
+   * Return the profile of every lock and semaphore, in decreasing order of total time spent waiting
+   * for it.
+   *
+   * @return the profiles.
+   */
+  public Profile[] getProfiles() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    Profile[] result = profiles.values().toArray(new Profile[profiles.size()]);
+
+    Machine.interrupt().restore(intStatus);
+
+    Arrays.sort(
+        result,
+        new Comparator<Profile>() {
+          public int compare(Profile a, Profile b) {
+            return Long.compare(b.totalWait, a.totalWait);
+          }
+        });
+
+    return result;
+  }
+
+  /** Print every profile that was ever acquired, most contended first. */
+  public void print() {
+    System.out.println("Lock profile (times in ticks):");
+    System.out.println(
+        String.format(
+            "%9s %9s %10s %8s  %s", "acquires", "contended", "total wait", "max wait", "name"));
+
+    for (Profile p : getProfiles()) {
+      if (p.acquires == 0 && p.timeouts == 0) continue;
+
+      System.out.println(
+          String.format(
+              "%9d %9d %10d %8d  %s", p.acquires, p.contended, p.totalWait, p.maxWait, p.name));
+      if (p.timeouts > 0) System.out.println("    timed out: " + p.timeouts);
+      if (!p.waitByThread.isEmpty())
+        System.out.println("    top waiters: " + format(p.getTopWaiters(3)));
+      if (!p.holdByThread.isEmpty()) {
+        System.out.println("    top holders: " + format(p.getTopHolders(3)));
+        System.out.print("    hold time histogram:");
+        for (int i = 0; i < histogramBuckets; i++)
+          if (p.holdHistogram[i] > 0)
+            System.out.print(" <" + (1L << i) + ":" + p.holdHistogram[i]);
+        System.out.println();
+      }
+    }
+  }
+
+  /** Format a list of thread names and times. */
+  private static String format(List<Map.Entry<String, Long>> times) {
+    StringBuilder s = new StringBuilder();
+    for (Map.Entry<String, Long> e : times)
+      s.append(s.length() > 0 ? ", " : "").append(e.getKey()).append(" ").append(e.getValue());
+    return s.toString();
+  }
+
+  /** The contention statistics of a single lock or semaphore. */
+  public static class Profile {
+    private String name;
+    private long acquires = 0, contended = 0, timeouts = 0;
+    private long totalWait = 0, maxWait = 0;
+    private long[] holdHistogram = new long[histogramBuckets];
+    private HashMap<String, Long> waitByThread = new HashMap<String, Long>();
+    private HashMap<String, Long> holdByThread = new HashMap<String, Long>();
+
+    private Profile(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Record that <i>thread</i> acquired the lock or semaphore, after waiting <i>wait</i> ticks if
+     * <i>waited</i> is <tt>true</tt>. Interrupts must be disabled.
+     */
+    void acquired(KThread thread, boolean waited, long wait) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      acquires++;
+      if (waited) {
+        contended++;
+        waited(thread, wait);
+      }
+    }
+
+    /**
+     * Record that <i>thread</i> gave up after waiting <i>wait</i> ticks. Interrupts must be
+     * disabled.
+     */
+    void timedOut(KThread thread, long wait) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      timeouts++;
+      waited(thread, wait);
+    }
+
+    /**
+     * Record that <i>thread</i> released the lock after holding it for <i>hold</i> ticks.
+     * Interrupts must be disabled.
+     */
+    void released(KThread thread, long hold) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      int bucket = 64 - Long.numberOfLeadingZeros(hold);
+      holdHistogram[Math.min(bucket, histogramBuckets - 1)]++;
+      add(holdByThread, thread, hold);
+    }
+
+    private void waited(KThread thread, long wait) {
+      totalWait += wait;
+      maxWait = Math.max(maxWait, wait);
+      add(waitByThread, thread, wait);
+    }
+
+    private static void add(HashMap<String, Long> times, KThread thread, long time) {
+      Long total = times.get(thread.getName());
+      times.put(thread.getName(), (total == null ? 0 : total) + time);
+    }
+
+    private static List<Map.Entry<String, Long>> top(Map<String, Long> times, int n) {
+      ArrayList<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+      for (Map.Entry<String, Long> e : times.entrySet())
+        entries.add(new AbstractMap.SimpleEntry<String, Long>(e));
+      Collections.sort(
+          entries,
+          new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+              return b.getValue().compareTo(a.getValue());
+            }
+          });
+      while (entries.size() > n) entries.remove(entries.size() - 1);
+      return entries;
+    }
+
+    /**
+     * Return the name identifying the lock or semaphore.
+     *
+     * @return the name given when it was created, or where it was created.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Return the number of acquisitions of a lock, or completed <tt>P()</tt>s of a semaphore.
+     *
+     * @return the number of acquisitions.
+     */
+    public long getAcquires() {
+      return acquires;
+    }
+
+    /**
+     * Return the number of acquisitions that had to wait.
+     *
+     * @return the number of contended acquisitions.
+     */
+    public long getContended() {
+      return contended;
+    }
+
+    /**
+     * Return the number of timed waits that gave up.
+     *
+     * @return the number of timeouts.
+     */
+    public long getTimeouts() {
+      return timeouts;
+    }
+
+    /**
+     * Return the total time threads spent waiting, including waits that timed out.
+     *
+     * @return the total wait time, in ticks.
+     */
+    public long getTotalWait() {
+      return totalWait;
+    }
+
+    /**
+     * Return the longest time a single thread spent waiting.
+     *
+     * @return the maximum wait time, in ticks.
+     */
+    public long getMaxWait() {
+      return maxWait;
+    }
+
+    /**
+     * Return the hold time histogram of a lock. Bucket <i>i</i> counts the times the lock was held
+     * for less than 2<sup><i>i</i></sup> ticks but not less than 2<sup><i>i</i>-1</sup> ticks; the
+     * last bucket also counts every longer hold. Semaphores have an empty histogram.
+     *
+     * @return a copy of the histogram.
+     */
+    public long[] getHoldHistogram() {
+      return holdHistogram.clone();
+    }
+
+    /**
+     * Return the threads that spent the most time waiting, with their total wait times.
+     *
+     * @param n the maximum number of threads to return.
+     * @return the thread names and wait times, longest first.
+     */
+    public List<Map.Entry<String, Long>> getTopWaiters(int n) {
+      return top(waitByThread, n);
+    }
+
+    /**
+     * Return the threads that held the lock the longest, with their total hold times.
+     *
+     * @param n the maximum number of threads to return.
+     * @return the thread names and hold times, longest first.
+     */
+    public List<Map.Entry<String, Long>> getTopHolders(int n) {
+      return top(holdByThread, n);
+    }
+  }
+}
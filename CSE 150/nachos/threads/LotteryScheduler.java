@@ -4,8 +4,8 @@ import nachos.machine.Lib;
 import nachos.machine.Machine;
 
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Random;
-import java.util.TreeSet;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -126,8 +126,13 @@ public class LotteryScheduler extends Scheduler {
     public boolean transferPriority;
     /** Thread that owns the resource associated with this queue */
     private ThreadState owner = null;
-    /** TreeSet<ThreadState>() of threads waiting for access to this resource */
-    private TreeSet<ThreadState> threadQueue = new TreeSet<ThreadState>();
+    /** Threads sharing the resource with its owner, which waiting threads also donate to */
+    private LinkedList<ThreadState> sharers = new LinkedList<ThreadState>();
+    /**
+     * Threads waiting for access to this resource. Not sorted, since a lottery does not depend on
+     * order and ticket counts change while threads are queued.
+     */
+    private LinkedList<ThreadState> threadQueue = new LinkedList<ThreadState>();
     /** Random number generator for ticket selection */
     private Random rng = new Random();
 
@@ -151,9 +156,48 @@ public class LotteryScheduler extends Scheduler {
       ThreadState t = pickNextThread();
       if (t == null || t.thread == null) return null;
       t.acquire(this);
+      /** the sharers lose the tickets of the thread that left */
+      for (ThreadState s : sharers) s.updatePriorities();
       return t.thread;
     }
 
+    public boolean remove(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState t = getThreadState(thread);
+      if (t.waitQueue != this || !threadQueue.remove(t)) return false;
+      t.waitQueue = null;
+      /** the holders lose the tickets this thread was donating */
+      for (ThreadState holder : holders()) holder.updatePriorities();
+      return true;
+    }
+
+    public void share(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState t = getThreadState(thread);
+      if (t == owner || sharers.contains(t)) return;
+
+      sharers.add(t);
+      t.resources.add(this);
+      t.updatePriorities();
+    }
+
+    public void unshare(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState t = getThreadState(thread);
+      if (t == owner) owner = null;
+      else if (!sharers.remove(t)) return;
+
+      t.resources.remove(this);
+      t.updatePriorities();
+    }
+
+    /** Return every thread with access: the owner, if any, and its sharers. */
+    private LinkedList<ThreadState> holders() {
+      LinkedList<ThreadState> holders = new LinkedList<ThreadState>(sharers);
+      if (owner != null) holders.addFirst(owner);
+      return holders;
+    }
+
     private ThreadState pickNextThread() {
       int total = 0;
       for (ThreadState ts : threadQueue) total = safeAdd(total, ts.getEffectivePriority());
@@ -252,20 +296,18 @@ public class LotteryScheduler extends Scheduler {
           for (ThreadState t : q.threadQueue)
             effective = safeAdd(effective, t.getEffectivePriority());
 
-      if (waitQueue != null && waitQueue.owner != null)
-        waitQueue.owner.updateDiff(effective - initEff, updated);
+      if (waitQueue != null && waitQueue.transferPriority)
+        for (ThreadState holder : waitQueue.holders())
+          holder.updateDiff(effective - initEff, updated);
       updated.clear();
     }
 
     public void updateDiff(int diff, HashSet<Integer> updated) {
       effective = safeAdd(effective, diff);
       updated.add(id);
-      if (waitQueue != null
-          && waitQueue.owner != null
-          && waitQueue.transferPriority
-          && !updated.contains(waitQueue.owner.id)) {
-        waitQueue.owner.updateDiff(diff, updated);
-      }
+      if (waitQueue != null && waitQueue.transferPriority)
+        for (ThreadState holder : waitQueue.holders())
+          if (!updated.contains(holder.id)) holder.updateDiff(diff, updated);
     }
 
     /**
@@ -285,7 +327,7 @@ public class LotteryScheduler extends Scheduler {
       this.waitQueue = queue;
 
       updatePriorities();
-      if (queue.owner != null) queue.owner.updatePriorities();
+      for (ThreadState holder : queue.holders()) holder.updatePriorities();
     }
 
     /**
@@ -303,6 +345,7 @@ public class LotteryScheduler extends Scheduler {
       queue.threadQueue.remove(this);
       queue.owner = this;
       resources.add(queue);
+      if (waitQueue == queue) waitQueue = null;
 
       updatePriorities();
     }
@@ -3,6 +3,7 @@ package nachos.threads;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
+import java.util.LinkedList;
 import java.util.TreeSet;
 
 /**
@@ -123,9 +124,9 @@ public class PriorityScheduler extends Scheduler {
        * compare priority of owner thread with highest priority thread in queue and recursively
        * update priority and reorder for everything owner holds
        */
-      ThreadState t = thread.waitQueue.currentThread;
-      if (t != null && !queue.isEmpty())
-        if (thread.waitQueue.transferPriority
+      for (ThreadState t : thread.waitQueue.holders())
+        if (!queue.isEmpty()
+            && thread.waitQueue.transferPriority
             && queue.last().getEffectivePriority() > t.getEffectivePriority()) {
           t.effective = queue.last().getEffectivePriority();
           updatePriorities(true, t);
@@ -145,6 +146,9 @@ public class PriorityScheduler extends Scheduler {
 
     protected ThreadState currentThread = null;
 
+    /** Threads sharing access with <tt>currentThread</tt>, which waiting threads also donate to. */
+    protected LinkedList<ThreadState> sharers = new LinkedList<ThreadState>();
+
     protected TreeSet<ThreadState> threadQueue = new TreeSet<ThreadState>();
 
     PriorityQueue(boolean transferPriority) {
@@ -165,6 +169,7 @@ public class PriorityScheduler extends Scheduler {
     public KThread nextThread() {
       Lib.assertTrue(Machine.interrupt().disabled());
       if (threadQueue.isEmpty()) return null;
+      for (ThreadState s : sharers) s.resources.remove(this);
       ThreadState t = threadQueue.pollLast();
       if (t == null || t.thread == null) return null;
       t.id = -1;
@@ -179,9 +184,63 @@ public class PriorityScheduler extends Scheduler {
                   currentThread.getEffectivePriority());
       }
       t.acquire(this);
+      /** the sharers lose the donation of the thread that left */
+      for (ThreadState s : sharers) {
+        s.resources.add(this);
+        if (transferPriority) s.updateEffectivePriority();
+      }
       return t.thread;
     }
 
+    public boolean remove(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState t = getThreadState(thread);
+      if (t.waitQueue != this) return false;
+
+      /** take this queue out of the holders' resources while its highest waiter changes */
+      LinkedList<ThreadState> holders = holders();
+      for (ThreadState holder : holders) holder.resources.remove(this);
+      threadQueue.remove(t);
+      t.waitQueue = null;
+      for (ThreadState holder : holders) {
+        holder.resources.add(this);
+        if (transferPriority) holder.updateEffectivePriority();
+      }
+      return true;
+    }
+
+    public void share(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState t = getThreadState(thread);
+      if (t == currentThread || sharers.contains(t)) return;
+
+      sharers.add(t);
+      t.resources.add(this);
+      if (transferPriority
+          && !threadQueue.isEmpty()
+          && threadQueue.last().getEffectivePriority() > t.getEffectivePriority()) {
+        t.effective = threadQueue.last().getEffectivePriority();
+        updatePriorities(true, t);
+      }
+    }
+
+    public void unshare(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      ThreadState t = getThreadState(thread);
+      if (t == currentThread) currentThread = null;
+      else if (!sharers.remove(t)) return;
+
+      t.resources.remove(this);
+      if (transferPriority) t.updateEffectivePriority();
+    }
+
+    /** Return every thread with access: the current thread, if any, and its sharers. */
+    protected LinkedList<ThreadState> holders() {
+      LinkedList<ThreadState> holders = new LinkedList<ThreadState>(sharers);
+      if (currentThread != null) holders.addFirst(currentThread);
+      return holders;
+    }
+
     /**
      * Return the next thread that <tt>nextThread()</tt> would return, without modifying the state
      * of this queue.
@@ -327,6 +386,37 @@ public class PriorityScheduler extends Scheduler {
       }
     }
 
+    /**
+     * Recompute the effective priority from the threads still waiting on the resources this thread
+     * holds. Unlike <tt>updatePriorities()</tt>, this can also lower it, so any change is passed on
+     * to the holder of the queue this thread is waiting on.
+     */
+    protected void updateEffectivePriority() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      int donated = priorityMinimum;
+      for (PriorityQueue q : resources)
+        if (q.transferPriority && q.pickNextThread() != null)
+          donated = Math.max(donated, q.pickNextThread().getEffectivePriority());
+      if (donated == effective) return;
+
+      if (waitQueue == null) {
+        effective = donated;
+        return;
+      }
+
+      /** reorder the queue this thread waits on, and its holders' resources, around the change */
+      PriorityQueue q = waitQueue;
+      LinkedList<ThreadState> holders = q.holders();
+      for (ThreadState holder : holders) holder.resources.remove(q);
+      q.threadQueue.remove(this);
+      effective = donated;
+      q.threadQueue.add(this);
+      for (ThreadState holder : holders) {
+        holder.resources.add(q);
+        if (q.transferPriority) holder.updateEffectivePriority();
+      }
+    }
+
     @Override
     public int compareTo(ThreadState thread) {
       int p = getEffectivePriority().compareTo(thread.getEffectivePriority());
@@ -0,0 +1,196 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of <i>readers</i> at
+ * once, or by a single <i>writer</i>. It allows the following operations:
+ *
+ * <p>
+ *
+ * <ul>
+ *   <li><tt>acquireRead()</tt>: wait until no writer holds the lock, then hold it for reading.
+ *   <li><tt>releaseRead()</tt>: stop reading, letting a writer in if this was the last reader.
+ *   <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then hold it for writing.
+ *   <li><tt>releaseWrite()</tt>: stop writing, letting in either the next writer or all waiting
+ *       readers, depending on the policy.
+ * </ul>
+ *
+ * <p>
+ *
+ * <p>Once a writer is waiting, new readers wait as well, so that a steady stream of readers cannot
+ * starve writers. When a writer releases the lock, the policy decides who goes next:
+ *
+ * <ul>
+ *   <li><tt>policyWriterPreference</tt>: the next waiting writer, if any; otherwise all waiting
+ *       readers.
+ *   <li><tt>policyFair</tt>: all waiting readers, if any; otherwise the next waiting writer. Readers
+ *       and writers therefore alternate, and neither can starve the other.
+ * </ul>
+ *
+ * <p>
+ *
+ * <p>Both wait queues transfer priority. While a writer holds the lock, waiting readers and writers
+ * donate to it. While readers hold the lock, they all share both wait queues, so a waiting writer
+ * donates to every reader it is waiting for at once.
+ */
+public class ReadWriteLock {
+  /** Prefer waiting writers over waiting readers when a writer releases the lock. */
+  public static final int policyWriterPreference = 0;
+  /** Alternate between waiting readers and waiting writers. */
+  public static final int policyFair = 1;
+
+  private int policy;
+  private KThread writer = null;
+  private LinkedList<KThread> readers = new LinkedList<KThread>();
+  private ThreadQueue readQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+  private ThreadQueue writeQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+  private LinkedList<KThread> waitingReaders = new LinkedList<KThread>();
+  private int waitingWriters = 0;
+
+  /** Allocate a new writer-preference readers-writer lock. The lock will initially be free. */
+  public ReadWriteLock() {
+    this(policyWriterPreference);
+  }
+
+  /**
+   * Allocate a new readers-writer lock. The lock will initially be free.
+   *
+   * @param policy <tt>policyWriterPreference</tt> or <tt>policyFair</tt>.
+   */
+  public ReadWriteLock(int policy) {
+    Lib.assertTrue(policy == policyWriterPreference || policy == policyFair);
+
+    this.policy = policy;
+  }
+
+  /**
+   * Atomically wait until no writer holds or is waiting for this lock, then hold it for reading. The
+   * current thread must not already hold this lock.
+   */
+  public void acquireRead() {
+    Lib.assertTrue(!isReadHeldByCurrentThread() && !isWriteHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+
+    if (writer == null && waitingWriters == 0) {
+      readers.add(thread);
+      share(thread);
+    } else {
+      waitingReaders.add(thread);
+      readQueue.waitForAccess(thread);
+      KThread.sleep();
+    }
+
+    Lib.assertTrue(readers.contains(thread));
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /** Atomically stop reading. If this was the last reader, let the next waiting writer in. */
+  public void releaseRead() {
+    Lib.assertTrue(isReadHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    readers.remove(KThread.currentThread());
+    unshare(KThread.currentThread());
+
+    if (readers.isEmpty()) {
+      if ((writer = writeQueue.nextThread()) != null) {
+        waitingWriters--;
+        share(writer);
+        writer.ready();
+      }
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Atomically wait until no thread holds this lock, then hold it for writing. The current thread
+   * must not already hold this lock.
+   */
+  public void acquireWrite() {
+    Lib.assertTrue(!isReadHeldByCurrentThread() && !isWriteHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+    KThread thread = KThread.currentThread();
+
+    if (writer == null && readers.isEmpty()) {
+      writer = thread;
+      share(thread);
+    } else {
+      waitingWriters++;
+      writeQueue.waitForAccess(thread);
+      KThread.sleep();
+    }
+
+    Lib.assertTrue(writer == thread);
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /** Atomically stop writing, letting the next writer or all waiting readers in. */
+  public void releaseWrite() {
+    Lib.assertTrue(isWriteHeldByCurrentThread());
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    unshare(writer);
+    writer = null;
+
+    boolean admitReaders =
+        (policy == policyFair) ? !waitingReaders.isEmpty() : waitingWriters == 0;
+
+    if (admitReaders) {
+      for (KThread thread : waitingReaders) {
+        readQueue.remove(thread);
+        readers.add(thread);
+        share(thread);
+        thread.ready();
+      }
+      waitingReaders.clear();
+    } else if ((writer = writeQueue.nextThread()) != null) {
+      waitingWriters--;
+      share(writer);
+      writer.ready();
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Test if the current thread holds this lock for reading.
+   *
+   * @return <tt>true</tt> if the current thread is a reader.
+   */
+  public boolean isReadHeldByCurrentThread() {
+    return readers.contains(KThread.currentThread());
+  }
+
+  /**
+   * Test if the current thread holds this lock for writing.
+   *
+   * @return <tt>true</tt> if the current thread is the writer.
+   */
+  public boolean isWriteHeldByCurrentThread() {
+    return (writer == KThread.currentThread());
+  }
+
+  /** Let <i>thread</i> share both wait queues, so that waiting threads donate to it. */
+  private void share(KThread thread) {
+    readQueue.share(thread);
+    writeQueue.share(thread);
+  }
+
+  /** Stop waiting threads from donating their priority to <i>thread</i>. */
+  private void unshare(KThread thread) {
+    readQueue.unshare(thread);
+    writeQueue.unshare(thread);
+  }
+}
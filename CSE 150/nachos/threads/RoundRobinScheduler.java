@@ -63,6 +63,27 @@ public class RoundRobinScheduler extends Scheduler {
       Lib.assertTrue(waitQueue.isEmpty());
     }
 
+    /**
+     * Remove the specified thread from wherever it is in the queue.
+     *
+     * @return <tt>true</tt> if the thread was on the queue.
+     */
+    public boolean remove(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      return waitQueue.remove(thread);
+    }
+
+    /** A FIFO queue does not transfer priority, so sharing access changes nothing. */
+    public void share(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /** A FIFO queue does not transfer priority, so giving up access changes nothing. */
+    public void unshare(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
     /** Print out the contents of the queue. */
     public void print() {
       Lib.assertTrue(Machine.interrupt().disabled());
@@ -25,6 +25,7 @@ import nachos.machine.Machine;
 public class Semaphore {
   private int value;
   private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+  private LockProfiler.Profile profile = null;
 
   /**
    * Allocate a new semaphore.
@@ -32,7 +33,23 @@ public class Semaphore {
    * @param initialValue the initial value of this semaphore.
    */
   public Semaphore(int initialValue) {
+    this(initialValue, null);
+  }
+
+  /**
+   * Allocate a new semaphore with a name identifying it in lock profiling reports.
+   *
+   * @param initialValue the initial value of this semaphore.
+   * @param name the name of this semaphore, or <tt>null</tt> to identify it by where it was
+   *     created.
+   */
+  public Semaphore(int initialValue, String name) {
     value = initialValue;
+
+    if (ThreadedKernel.lockProfiler != null) {
+      if (name == null) name = Lock.allocationSite(Semaphore.class);
+      profile = ThreadedKernel.lockProfiler.register("semaphore " + name);
+    }
   }
 
   /** Test if this module is working. */
@@ -51,17 +68,55 @@ public class Semaphore {
   /** Atomically wait for this semaphore to become non-zero and decrement it. */
   public void P() {
     boolean intStatus = Machine.interrupt().disable();
+    long start = Machine.timer().getTime();
+    boolean waited = (value == 0);
 
-    if (value == 0) {
+    if (waited) {
       waitQueue.waitForAccess(KThread.currentThread());
       KThread.sleep();
     } else {
       value--;
     }
 
+    if (profile != null)
+      profile.acquired(KThread.currentThread(), waited, Machine.timer().getTime() - start);
+
     Machine.interrupt().restore(intStatus);
   }
 
+  /**
+   * Atomically wait for this semaphore to become non-zero and decrement it, giving up if this has
+   * not happened after at least <i>timeout</i> ticks.
+   *
+   * @param timeout the minimum number of clock ticks to wait.
+   * @return <tt>true</tt> if the semaphore was decremented, or <tt>false</tt> if the wait timed out.
+   */
+  public boolean tryP(long timeout) {
+    boolean intStatus = Machine.interrupt().disable();
+    long start = Machine.timer().getTime();
+    boolean waited = (value == 0);
+    boolean acquired = true;
+
+    if (value > 0) {
+      value--;
+    } else if (timeout > 0) {
+      waitQueue.waitForAccess(KThread.currentThread());
+      acquired = ThreadedKernel.alarm.waitOn(waitQueue, timeout);
+    } else {
+      acquired = false;
+    }
+
+    if (profile != null) {
+      long wait = Machine.timer().getTime() - start;
+      if (acquired) profile.acquired(KThread.currentThread(), waited, wait);
+      else profile.timedOut(KThread.currentThread(), wait);
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    return acquired;
+  }
+
   /**
    * Atomically increment this semaphore and wake up at most one other thread sleeping on this
    * semaphore.
@@ -1,20 +1,41 @@
 package nachos.threads;
 
 import nachos.machine.Lib;
+import nachos.machine.Machine;
 
 import java.util.LinkedList;
 
-/** A synchronized queue. */
+/**
+ * A synchronized queue. The queue may be given a capacity, in which case <tt>add()</tt> waits while
+ * the queue is full, so that producers cannot run arbitrarily far ahead of consumers. A consumer
+ * that handles items in batches can use <tt>drainTo()</tt> to remove every available item with a
+ * single acquisition of the queue's lock.
+ */
 public class SynchList {
   private LinkedList<Object> list;
+  private int capacity;
   private Lock lock;
   private Condition listEmpty;
+  private Condition listFull;
 
-  /** Allocate a new synchronized queue. */
+  /** Allocate a new, unbounded synchronized queue. */
   public SynchList() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Allocate a new synchronized queue that holds at most <i>capacity</i> objects.
+   *
+   * @param capacity the maximum number of objects in the queue. Must be positive.
+   */
+  public SynchList(int capacity) {
+    Lib.assertTrue(capacity > 0);
+
     list = new LinkedList<Object>();
+    this.capacity = capacity;
     lock = new Lock();
     listEmpty = new Condition(lock);
+    listFull = new Condition(lock);
   }
 
   /** Test that this module is working. */
@@ -32,8 +53,9 @@ public class SynchList {
   }
 
   /**
-   * Add the specified object to the end of the queue. If another thread is waiting in
-   * <tt>removeFirst()</tt>, it is woken up.
+   * Add the specified object to the end of the queue, blocking until there is room if the queue is
+   * full. If another thread is waiting in <tt>removeFirst()</tt> or <tt>drainTo()</tt>, it is woken
+   * up.
    *
    * @param o the object to add. Must not be <tt>null</tt>.
    */
@@ -41,6 +63,7 @@ public class SynchList {
     Lib.assertTrue(o != null);
 
     lock.acquire();
+    while (list.size() >= capacity) listFull.sleep();
     list.add(o);
     listEmpty.wake();
     lock.release();
@@ -58,11 +81,64 @@ public class SynchList {
     lock.acquire();
     while (list.isEmpty()) listEmpty.sleep();
     o = list.removeFirst();
+    listFull.wake();
+    lock.release();
+
+    return o;
+  }
+
+  /**
+   * Remove an object from the front of the queue, waiting at least <i>timeout</i> ticks for the
+   * queue to become non-empty if necessary.
+   *
+   * @param timeout the minimum number of clock ticks to wait.
+   * @return the element removed from the front of the queue, or <tt>null</tt> if the queue was
+   *     still empty when the wait timed out.
+   */
+  public Object removeFirst(long timeout) {
+    Object o = null;
+    long deadline = Machine.timer().getTime() + timeout;
+
+    lock.acquire();
+    while (list.isEmpty()) {
+      long remaining = deadline - Machine.timer().getTime();
+      if (remaining <= 0 || !listEmpty.sleep(remaining)) break;
+    }
+    if (!list.isEmpty()) {
+      o = list.removeFirst();
+      listFull.wake();
+    }
     lock.release();
 
     return o;
   }
 
+  /**
+   * Remove up to <i>max</i> objects from the front of the queue, blocking until the queue is
+   * non-empty if necessary. All the objects are removed while holding the lock once, and as many
+   * threads waiting in <tt>add()</tt> are woken as there are newly free slots.
+   *
+   * @param items the array where the objects will be stored, in queue order.
+   * @param offset the index at which to store the first object.
+   * @param max the maximum number of objects to remove. Must be positive.
+   * @return the number of objects removed.
+   */
+  public int drainTo(Object[] items, int offset, int max) {
+    Lib.assertTrue(offset >= 0 && max > 0 && offset + max <= items.length);
+
+    lock.acquire();
+    while (list.isEmpty()) listEmpty.sleep();
+
+    int amount = Math.min(max, list.size());
+    for (int i = 0; i < amount; i++) {
+      items[offset + i] = list.removeFirst();
+      listFull.wake();
+    }
+    lock.release();
+
+    return amount;
+  }
+
   private static class PingTest implements Runnable {
     private SynchList ping;
     private SynchList pong;
@@ -88,6 +88,37 @@ public abstract class ThreadQueue {
    */
   public abstract void acquire(KThread thread);
 
+  /**
+   * Notify this thread queue that the specified thread has stopped waiting for access, for example
+   * because it gave up after a timeout. The thread is removed without receiving access. If the
+   * limited access object transfers priority, the thread no longer donates its priority to the
+   * thread that has access.
+   *
+   * @param thread the thread that has stopped waiting.
+   * @return <tt>true</tt> if the thread was waiting on this queue and has been removed, or
+   *     <tt>false</tt> if it was not waiting (e.g. because <tt>nextThread()</tt> already returned it).
+   */
+  public abstract boolean remove(KThread thread);
+
+  /**
+   * Notify this thread queue that a thread has received access alongside any threads that already
+   * have it, as the readers of a readers-writer lock share it. If the limited access object
+   * transfers priority, waiting threads donate priority to every thread sharing access, until it
+   * is given up with <tt>unshare()</tt>.
+   *
+   * @param thread the thread that now shares access.
+   */
+  public abstract void share(KThread thread);
+
+  /**
+   * Notify this thread queue that a thread has given up access, whether it received it by sharing
+   * or otherwise. If the limited access object transfers priority, waiting threads stop donating
+   * priority to it.
+   *
+   * @param thread the thread that no longer has access.
+   */
+  public abstract void unshare(KThread thread);
+
   /** Print out all the threads waiting for access, in no particular order. */
   public abstract void print();
 }
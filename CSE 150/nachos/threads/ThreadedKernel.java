@@ -10,6 +10,10 @@ public class ThreadedKernel extends Kernel {
   public static Alarm alarm = null;
   /** Globally accessible reference to the file system. */
   public static FileSystem fileSystem = null;
+  /** Globally accessible reference to the deadlock detector, or <tt>null</tt> if disabled. */
+  public static DeadlockDetector deadlockDetector = null;
+  /** Globally accessible reference to the lock profiler, or <tt>null</tt> if disabled. */
+  public static LockProfiler lockProfiler = null;
   // dummy variables to make javac smarter
   private static RoundRobinScheduler dummy1 = null;
   private static PriorityScheduler dummy2 = null;
@@ -32,6 +36,13 @@ public class ThreadedKernel extends Kernel {
     String schedulerName = Config.getString("ThreadedKernel.scheduler");
     scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+    // set deadlock detector
+    if (Config.getBoolean("ThreadedKernel.deadlockDetector", false))
+      deadlockDetector = new DeadlockDetector();
+
+    // set lock profiler
+    if (Config.getBoolean("ThreadedKernel.lockProfiler", false)) lockProfiler = new LockProfiler();
+
     // set fileSystem
     String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
     if (fileSystemName != null) fileSystem = (FileSystem) Lib.constructObject(fileSystemName);
@@ -65,6 +76,8 @@ public class ThreadedKernel extends Kernel {
 
   /** Terminate this kernel. Never returns. */
   public void terminate() {
+    if (lockProfiler != null) lockProfiler.print();
+
     Machine.halt();
   }
 }
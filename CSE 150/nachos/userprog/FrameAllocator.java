@@ -0,0 +1,213 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+
+/**
+ * Keeps track of which frames of physical memory are free, in a bitmap with one bit per frame.
+ * Single frames are taken from the first word of the bitmap with a free bit, and a hint records
+ * where that word is, so that allocation does not rescan the frames already in use. A process's
+ * frames are preferably allocated as one contiguous run, which keeps its memory together, and can
+ * all be freed at once when it exits.
+ *
+ * <p>
+ *
+ * <p>A frame can be shared by several processes, such as a parent and a child created by
+ * <tt>fork()</tt>. Each <tt>share()</tt> adds a reference to the frame, and it only becomes free
+ * again when every reference has been freed.
+ *
+ * <p>
+ *
+ * <p>A frame allocator is not synchronized; <tt>UserKernel</tt> disables interrupts around it.
+ */
+public class FrameAllocator {
+  /** One bit per frame, set if the frame is free. */
+  private long[] free;
+  /** The number of references to each allocated frame beyond the first. */
+  private int[] shares;
+  private int numFrames;
+  private int numFree;
+  /** Every word of the bitmap before this one has no free frames. */
+  private int hint = 0;
+
+  /**
+   * Allocate a new frame allocator. Initially every frame is free.
+   *
+   * @param numFrames the number of frames of physical memory.
+   */
+  public FrameAllocator(int numFrames) {
+    Lib.assertTrue(numFrames >= 0);
+
+    this.numFrames = numFrames;
+    this.numFree = numFrames;
+
+    shares = new int[numFrames];
+
+    free = new long[(numFrames + 63) / 64];
+    for (int w = 0; w < free.length; w++) free[w] = -1L;
+    if (numFrames % 64 != 0) free[free.length - 1] = (1L << (numFrames % 64)) - 1;
+  }
+
+  /**
+   * Allocate a single frame.
+   *
+   * @return the frame number, or -1 if no frame is free.
+   */
+  public int allocate() {
+    for (; hint < free.length; hint++) {
+      if (free[hint] != 0) {
+        int bit = Long.numberOfTrailingZeros(free[hint]);
+        free[hint] &= ~(1L << bit);
+        numFree--;
+        return hint * 64 + bit;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Allocate a contiguous run of frames, using the first run that is long enough.
+   *
+   * @param count the number of frames.
+   * @return the first frame of the run, or -1 if there is no free run that long.
+   */
+  public int allocateRun(int count) {
+    Lib.assertTrue(count > 0);
+
+    if (count > numFree) return -1;
+
+    int start = -1, length = 0;
+    for (int i = hint * 64; i < numFrames; i++) {
+      // skip whole words of used frames at once
+      if (i % 64 == 0 && free[i / 64] == 0) {
+        i += 63;
+        length = 0;
+        continue;
+      }
+
+      if (!isFree(i)) {
+        length = 0;
+      } else {
+        if (length++ == 0) start = i;
+        if (length == count) {
+          for (int j = start; j < start + count; j++) free[j / 64] &= ~(1L << (j % 64));
+          numFree -= count;
+          return start;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Allocate a number of frames, as one contiguous run if possible, and otherwise wherever they are
+   * free. Either all the frames are allocated, or none are.
+   *
+   * @param count the number of frames.
+   * @return the frame numbers, or <tt>null</tt> if not enough frames are free.
+   */
+  public int[] allocate(int count) {
+    Lib.assertTrue(count >= 0);
+
+    if (count > numFree) return null;
+
+    int[] frames = new int[count];
+    if (count == 0) return frames;
+
+    int start = allocateRun(count);
+    for (int i = 0; i < count; i++) frames[i] = (start != -1) ? start + i : allocate();
+
+    return frames;
+  }
+
+  /**
+   * Add a reference to an allocated frame, so that it stays allocated until it has been freed one
+   * more time.
+   *
+   * @param frame the frame number, which must be allocated.
+   */
+  public void share(int frame) {
+    Lib.assertTrue(frame >= 0 && frame < numFrames && !isFree(frame));
+
+    shares[frame]++;
+  }
+
+  /**
+   * Test if an allocated frame has more than one reference.
+   *
+   * @param frame the frame number.
+   * @return <tt>true</tt> if freeing the frame would not make it free.
+   */
+  public boolean isShared(int frame) {
+    return shares[frame] > 0;
+  }
+
+  /**
+   * Drop a reference to a frame, and free it if that was the last one.
+   *
+   * @param frame the frame number, which must be allocated.
+   */
+  public void free(int frame) {
+    Lib.assertTrue(frame >= 0 && frame < numFrames && !isFree(frame));
+
+    if (shares[frame] > 0) {
+      shares[frame]--;
+      return;
+    }
+
+    free[frame / 64] |= 1L << (frame % 64);
+    numFree++;
+    hint = Math.min(hint, frame / 64);
+  }
+
+  /**
+   * Free a number of frames, such as all those of an exiting process.
+   *
+   * @param frames the frame numbers, which must all be allocated.
+   */
+  public void free(int[] frames) {
+    for (int frame : frames) free(frame);
+  }
+
+  /**
+   * Test if a frame is free.
+   *
+   * @param frame the frame number.
+   * @return <tt>true</tt> if the frame is free.
+   */
+  public boolean isFree(int frame) {
+    return (free[frame / 64] & (1L << (frame % 64))) != 0;
+  }
+
+  /**
+   * Return the number of frames of physical memory.
+   *
+   * @return the number of frames.
+   */
+  public int getNumFrames() {
+    return numFrames;
+  }
+
+  /**
+   * Return the number of frames that are free.
+   *
+   * @return the number of free frames.
+   */
+  public int getNumFree() {
+    return numFree;
+  }
+
+  /**
+   * Describe which frames are in use, one character per frame: <tt>#</tt> for used frames and
+   * <tt>.</tt> for free ones.
+   *
+   * @return a map of physical memory.
+   */
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append(numFrames - numFree).append('/').append(numFrames).append(" frames used [");
+    for (int i = 0; i < numFrames; i++) s.append(isFree(i) ? '.' : '#');
+    return s.append(']').toString();
+  }
+}
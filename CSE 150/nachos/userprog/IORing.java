@@ -0,0 +1,334 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+import nachos.threads.Condition2;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * A pair of rings in a process's memory through which it submits reads and writes and collects
+ * their results, so that a single thread can keep many operations in flight. The process fills in
+ * submission entries and advances the submission tail; <tt>io_enter()</tt> takes every new entry,
+ * and hands it to a pool of worker threads that perform the transfers. As each operation finishes,
+ * a completion entry is added to the completion ring and its tail advanced, for the process to
+ * consume by advancing the completion head.
+ *
+ * <p>
+ *
+ * <p>The ring header in user memory is laid out as follows, each field a 32-bit word:
+ *
+ * <pre>
+ *   0  entries   the number of entries in each ring, a power of two
+ *   4  sq_head   advanced by the kernel as it takes submissions
+ *   8  sq_tail   advanced by the process as it adds submissions
+ *  12  cq_head   advanced by the process as it consumes completions
+ *  16  cq_tail   advanced by the kernel as it adds completions
+ *  20  sq        the address of the submission entries
+ *  24  cq        the address of the completion entries
+ * </pre>
+ *
+ * A submission entry is an opcode, a file descriptor, a buffer address, a length, a file offset
+ * (or -1 to use and advance the descriptor's position) and a word returned in the completion. A
+ * completion entry is that word followed by the result, as <tt>read()</tt> or <tt>write()</tt>
+ * would return it.
+ *
+ * <p>
+ *
+ * <p>Operations on the same open file run one at a time, in the order they were submitted;
+ * operations on different files run at once. If the completion ring is full, completions are held
+ * in the kernel until there is room. The pages of each operation's buffer are pinned from when it
+ * is submitted until it completes, so that the process cannot unmap them, or share them with a
+ * child, while a worker is transferring them.
+ */
+public class IORing {
+  /** Read from the file into the buffer. */
+  public static final int opRead = 0;
+  /** Write the buffer to the file. */
+  public static final int opWrite = 1;
+  /** The most entries a ring may have. */
+  public static final int maxEntries = 256;
+  /** The most worker threads serving one ring. */
+  public static final int maxWorkers = 8;
+
+  private static final int headerSize = 28, sqeSize = 24, cqeSize = 8;
+  private static final int sqHeadOffset = 4, cqHeadOffset = 12, cqTailOffset = 16;
+
+  private UserProcess process;
+  private int ring;
+  /** The size and completion entries of the ring, as of the last <tt>enter()</tt>. */
+  private int entries, cq;
+
+  private Lock lock = new Lock();
+  /** Signalled when an operation is queued, or a file becomes free. */
+  private Condition2 workAvailable = new Condition2(lock);
+  /** Signalled when an operation completes, or a worker exits. */
+  private Condition2 completed = new Condition2(lock);
+
+  private LinkedList<Operation> queue = new LinkedList<Operation>();
+  /** The open files with an operation running. */
+  private HashSet<UserProcess.FileAllocator> busy = new HashSet<UserProcess.FileAllocator>();
+  /** Completions that did not fit in the completion ring: a user word and a result each. */
+  private LinkedList<int[]> overflow = new LinkedList<int[]>();
+  private int inFlight = 0, running = 0, workers = 0, idleWorkers = 0;
+  private boolean closed = false;
+
+  /**
+   * Allocate a new ring.
+   *
+   * @param process the process that owns the ring.
+   * @param ring the address of the ring header in the process's memory.
+   */
+  public IORing(UserProcess process, int ring) {
+    this.process = process;
+    this.ring = ring;
+  }
+
+  /**
+   * Return the address of the ring header.
+   *
+   * @return the address of the ring in the process's memory.
+   */
+  public int getAddress() {
+    return ring;
+  }
+
+  /**
+   * Submit every new entry in the submission ring, then wait until the completion ring holds at
+   * least <i>minComplete</i> completions, or no more operations are in flight.
+   *
+   * @param minComplete the number of completions to wait for.
+   * @return the number of entries submitted, or -1 if the ring header is invalid.
+   */
+  public int enter(int minComplete) {
+    lock.acquire();
+
+    byte[] header = new byte[headerSize];
+    if (process.readVirtualMemory(ring, header) != headerSize) {
+      lock.release();
+      return -1;
+    }
+
+    int newEntries = Lib.bytesToInt(header, 0);
+    int sqHead = Lib.bytesToInt(header, 4);
+    int sqTail = Lib.bytesToInt(header, 8);
+    int sq = Lib.bytesToInt(header, 20);
+    if (newEntries <= 0
+        || newEntries > maxEntries
+        || (newEntries & (newEntries - 1)) != 0
+        || (entries != 0 && newEntries != entries)) {
+      lock.release();
+      return -1;
+    }
+    entries = newEntries;
+    cq = Lib.bytesToInt(header, 24);
+
+    int submitted = 0;
+    byte[] sqe = new byte[sqeSize];
+    while (sqHead != sqTail && submitted < entries) {
+      int address = sq + (sqHead & (entries - 1)) * sqeSize;
+      if (process.readVirtualMemory(address, sqe) != sqeSize) break;
+
+      submit(sqe);
+      sqHead++;
+      submitted++;
+    }
+    writeWord(ring + sqHeadOffset, sqHead);
+
+    if (idleWorkers > 0) workAvailable.wakeAll();
+
+    flushOverflow();
+    minComplete = Math.min(minComplete, entries);
+    while (available() < minComplete && (inFlight > 0 || !overflow.isEmpty())) {
+      completed.sleep();
+      flushOverflow();
+    }
+
+    lock.release();
+
+    return submitted;
+  }
+
+  /**
+   * Cancel every operation that has not started, and let idle workers exit. Operations already
+   * running hold their own file references, so the process may close its descriptors next, which
+   * ends a transfer waiting on a pipe whose other end only the process had open. Called when the
+   * process exits; <tt>waitClosed()</tt> then waits for the running operations.
+   */
+  public void close() {
+    lock.acquire();
+
+    closed = true;
+    for (Operation op : queue) {
+      process.releaseFile(op.file);
+      process.unpinPages(op.buffer, op.pinned);
+    }
+    inFlight -= queue.size();
+    queue.clear();
+
+    workAvailable.wakeAll();
+
+    lock.release();
+  }
+
+  /**
+   * Wait for the operations running when the ring was closed to finish, and for every worker to
+   * exit. Called after <tt>close()</tt>, before the process's memory is released.
+   */
+  public void waitClosed() {
+    lock.acquire();
+
+    Lib.assertTrue(closed);
+    while (workers > 0) completed.sleep();
+
+    lock.release();
+  }
+
+  /** Queue the operation in a submission entry, or complete it at once if it is invalid. */
+  private void submit(byte[] sqe) {
+    Operation op = new Operation();
+    int opcode = Lib.bytesToInt(sqe, 0);
+    op.file = process.getDescriptor(Lib.bytesToInt(sqe, 4));
+    op.buffer = Lib.bytesToInt(sqe, 8);
+    op.length = Lib.bytesToInt(sqe, 12);
+    op.offset = Lib.bytesToInt(sqe, 16);
+    op.userData = Lib.bytesToInt(sqe, 20);
+    op.toFile = (opcode == opWrite);
+
+    if ((opcode != opRead && opcode != opWrite)
+        || op.file == null
+        || op.length < 0
+        || op.offset < -1) {
+      post(op.userData, -1);
+      return;
+    }
+
+    // the file stays open, and the buffer in place, until the operation is done with them
+    process.holdFile(op.file);
+    op.pinned = process.pinPages(op.buffer, op.length);
+    queue.add(op);
+    inFlight++;
+
+    // every worker not running an operation is about to look for one
+    while (queue.size() > workers - running && workers < maxWorkers) {
+      workers++;
+      new KThread(
+              new Runnable() {
+                public void run() {
+                  work();
+                }
+              })
+          .setName("io worker")
+          .fork();
+    }
+  }
+
+  /** The body of a worker thread: run queued operations until the ring is closed. */
+  private void work() {
+    lock.acquire();
+
+    while (true) {
+      Operation op = next();
+      if (op == null) {
+        if (closed) break;
+
+        idleWorkers++;
+        workAvailable.sleep();
+        idleWorkers--;
+        continue;
+      }
+
+      queue.remove(op);
+      busy.add(op.file);
+      running++;
+
+      lock.release();
+      int result = process.transferAt(op.file, op.buffer, op.length, op.offset, op.toFile);
+      lock.acquire();
+
+      running--;
+      inFlight--;
+      busy.remove(op.file);
+      process.releaseFile(op.file);
+      process.unpinPages(op.buffer, op.pinned);
+      post(op.userData, result);
+
+      completed.wakeAll();
+      // another operation on the same file may now run
+      if (idleWorkers > 0) workAvailable.wakeAll();
+    }
+
+    workers--;
+    completed.wakeAll();
+
+    lock.release();
+  }
+
+  /** Return the first queued operation whose file is not busy, or <tt>null</tt>. */
+  private Operation next() {
+    for (Operation op : queue) {
+      if (!busy.contains(op.file)) return op;
+    }
+
+    return null;
+  }
+
+  /** Add a completion to the completion ring, or hold it if the ring is full. */
+  private void post(int userData, int result) {
+    if (!overflow.isEmpty() || !addCompletion(userData, result))
+      overflow.add(new int[] {userData, result});
+  }
+
+  /** Move held completions into the completion ring, as far as there is room. */
+  private void flushOverflow() {
+    while (!overflow.isEmpty()) {
+      int[] completion = overflow.getFirst();
+      if (!addCompletion(completion[0], completion[1])) break;
+
+      overflow.removeFirst();
+    }
+  }
+
+  /** Write a completion entry and advance the tail, if the completion ring has room. */
+  private boolean addCompletion(int userData, int result) {
+    int cqHead = readWord(ring + cqHeadOffset);
+    int cqTail = readWord(ring + cqTailOffset);
+    if (cqTail - cqHead >= entries) return false;
+
+    byte[] cqe = new byte[cqeSize];
+    Lib.bytesFromInt(cqe, 0, userData);
+    Lib.bytesFromInt(cqe, 4, result);
+    if (process.writeVirtualMemory(cq + (cqTail & (entries - 1)) * cqeSize, cqe) != cqeSize) {
+      // the process has unmapped its ring; the completion is lost
+      return true;
+    }
+
+    writeWord(ring + cqTailOffset, cqTail + 1);
+    return true;
+  }
+
+  /** Return the number of completions waiting in the completion ring. */
+  private int available() {
+    return readWord(ring + cqTailOffset) - readWord(ring + cqHeadOffset);
+  }
+
+  private int readWord(int vaddr) {
+    byte[] word = new byte[4];
+    process.readVirtualMemory(vaddr, word);
+    return Lib.bytesToInt(word, 0);
+  }
+
+  private void writeWord(int vaddr, int value) {
+    process.writeVirtualMemory(vaddr, Lib.bytesFromInt(value));
+  }
+
+  private static class Operation {
+    UserProcess.FileAllocator file;
+    int buffer, length, offset, userData;
+    boolean toFile;
+    /** The number of pages of the buffer that are pinned. */
+    int pinned;
+  }
+}
@@ -0,0 +1,228 @@
+package nachos.userprog;
+
+import nachos.machine.Coff;
+import nachos.machine.CoffSection;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+import nachos.threads.ThreadedKernel;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Caches parsed executables, so that running the same program again does not reopen the file,
+ * re-read and re-check its headers, or read its sections from the file system. Each cached
+ * <tt>Image</tt> holds the program's <tt>Coff</tt>, and a copy of each page of its initialized
+ * sections that has been loaded.
+ *
+ * <p>
+ *
+ * <p>An image is only reused if the file still has the same length, and has not been written
+ * since the image was parsed, according to <tt>UserKernel.getModificationTime()</tt>. At most a
+ * fixed number of images are kept; when there are more, the least recently used image that no
+ * process is running is evicted.
+ */
+public class ImageCache {
+  private static final char dbgProcess = 'a';
+
+  /** The cached images, least recently used first. */
+  private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true);
+
+  private int capacity;
+  private int nextID = 1;
+
+  /**
+   * Allocate a new, empty, image cache.
+   *
+   * @param capacity the number of images to keep, besides those in use.
+   */
+  public ImageCache(int capacity) {
+    Lib.assertTrue(capacity >= 0);
+
+    this.capacity = capacity;
+  }
+
+  /**
+   * Return the parsed image of the named executable, using the cached image if it is still valid.
+   * A reference to the image is added for the caller, who must <tt>close()</tt> it when done.
+   *
+   * @param name the name of the executable.
+   * @return the image, or <tt>null</tt> if the file cannot be opened or is not a valid executable.
+   */
+  public Image open(String name) {
+    OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+    if (executable == null) {
+      Lib.debug(dbgProcess, "\topen failed");
+      return null;
+    }
+
+    int length = executable.length();
+    long modified = UserKernel.getModificationTime(name);
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    Image image = images.get(name);
+    if (image != null && (image.length != length || image.modified != modified)) {
+      Lib.debug(dbgProcess, "\tcached image of " + name + " is stale");
+      remove(image);
+      image = null;
+    }
+    if (image != null) image.users++;
+
+    Machine.interrupt().restore(intStatus);
+
+    if (image != null) {
+      executable.close();
+      return image;
+    }
+
+    // parsing reads the file, which blocks
+    Coff coff;
+    try {
+      coff = new Coff(executable);
+    } catch (EOFException e) {
+      executable.close();
+      Lib.debug(dbgProcess, "\tcoff load failed");
+      return null;
+    }
+
+    intStatus = Machine.interrupt().disable();
+
+    image = new Image(name, nextID++, coff, length, modified);
+    image.users++;
+    // another process may have parsed the file while this one was
+    Image old = images.get(name);
+    if (old != null) remove(old);
+    images.put(name, image);
+    trim();
+
+    Machine.interrupt().restore(intStatus);
+
+    return image;
+  }
+
+  /**
+   * Add a reference to an image, such as for a child created by <tt>fork()</tt>.
+   *
+   * @param image the image, which must be open.
+   */
+  public void share(Image image) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    Lib.assertTrue(image.users > 0);
+    image.users++;
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Drop a reference to an image. An image that is no longer cached is closed when its last
+   * reference is dropped; otherwise it stays cached until it is evicted.
+   *
+   * @param image the image.
+   */
+  public void close(Image image) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    if (--image.users == 0) {
+      if (images.get(image.name) != image) image.coff.close();
+      else trim();
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /** Stop caching an image, closing it if it is not in use. Interrupts must be disabled. */
+  private void remove(Image image) {
+    images.remove(image.name);
+    if (image.users == 0) image.coff.close();
+  }
+
+  /** Evict unused images, least recently used first, until at most <i>capacity</i> remain. */
+  private void trim() {
+    Iterator<Image> it = images.values().iterator();
+    while (images.size() > capacity && it.hasNext()) {
+      Image image = it.next();
+      if (image.users > 0) continue;
+
+      Lib.debug(dbgProcess, "\tevicting cached image of " + image.name);
+      it.remove();
+      image.coff.close();
+    }
+  }
+
+  /** A parsed executable. */
+  public static class Image {
+    private String name;
+    private int id;
+    private Coff coff;
+    private int length;
+    private long modified;
+    private int users = 0;
+    /** The contents of each loaded page of an initialized section, by virtual page. */
+    private HashMap<Integer, byte[]> pages = new HashMap<Integer, byte[]>();
+
+    private Image(String name, int id, Coff coff, int length, long modified) {
+      this.name = name;
+      this.id = id;
+      this.coff = coff;
+      this.length = length;
+      this.modified = modified;
+    }
+
+    /**
+     * Return the parsed executable. The caller must not close it.
+     *
+     * @return the executable.
+     */
+    public Coff getCoff() {
+      return coff;
+    }
+
+    /**
+     * Return a key that identifies this image, and no other image of the same file, such as for
+     * caching its pages after it has been loaded.
+     *
+     * @return the key.
+     */
+    public String getKey() {
+      return name + "#" + id;
+    }
+
+    /**
+     * Load a page of a section of this image into physical memory. The first time a page of an
+     * initialized section is loaded, it is read from the executable and a copy is kept; after that
+     * it is copied from memory.
+     *
+     * @param section the section, which must belong to this image.
+     * @param spn the page number within the section.
+     * @param ppn the physical page to load into.
+     */
+    public void loadPage(CoffSection section, int spn, int ppn) {
+      Lib.assertTrue(section.getCoff() == coff);
+
+      byte[] memory = Machine.processor().getMemory();
+      int paddr = ppn * Processor.pageSize;
+      int vpn = section.getFirstVPN() + spn;
+
+      byte[] page = pages.get(vpn);
+      if (page != null) {
+        System.arraycopy(page, 0, memory, paddr, Processor.pageSize);
+        return;
+      }
+
+      section.loadPage(spn, ppn);
+
+      // a page of an uninitialized section is only zero-filled, which costs no more than copying
+      if (section.isInitialzed()) {
+        page = new byte[Processor.pageSize];
+        System.arraycopy(memory, paddr, page, 0, Processor.pageSize);
+        pages.put(vpn, page);
+      }
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package nachos.userprog;
+
+import nachos.machine.CoffSection;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Caches the pages of files mapped into memory by <tt>mmap()</tt>, so that processes mapping the
+ * same file share one physical copy of each page they have read but not written. A page is read
+ * from the file the first time any process touches it, and stays cached until every mapping of the
+ * file has been removed. A process that writes to a cached page gets its own copy, which it writes
+ * back to the file when its mapping is removed.
+ *
+ * <p>
+ *
+ * <p>The kernel keeps a second page cache for the read-only sections of executables, keyed by
+ * executable image and virtual page, so that every process running the same program shares one copy
+ * of its code. Each process running the executable opens it in the cache, and its pages stay cached
+ * until the last such process exits.
+ *
+ * <p>
+ *
+ * <p>The cache holds one reference to each cached page, and every process that maps it holds
+ * another.
+ */
+public class PageCache {
+  private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+  /** Allocate a new, empty, page cache. */
+  public PageCache() {}
+
+  /**
+   * Record that a process has mapped the named file.
+   *
+   * @param name the name of the file.
+   */
+  public void open(String name) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    CachedFile f = files.get(name);
+    if (f == null) {
+      f = new CachedFile();
+      files.put(name, f);
+    }
+    f.mappings++;
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Record that a mapping of the named file has been removed. When the last one is, give back the
+   * cache's references to the file's pages.
+   *
+   * @param name the name of the file.
+   */
+  public void close(String name) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    CachedFile f = files.get(name);
+    if (--f.mappings == 0) {
+      files.remove(name);
+      for (Integer frame : f.frames.values()) UserKernel.addPage(frame);
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Return the physical page holding a page of a mapped file, reading it from the file if it is
+   * not cached. A reference to the page is added for the caller. The part of the page past the end
+   * of the file is filled with zeros.
+   *
+   * @param name the name of the file, which must be open in the cache.
+   * @param file the file.
+   * @param page the page of the file.
+   * @param length the length of the file.
+   * @return the physical page number, or -1 if there is no free memory or the file cannot be read.
+   */
+  public int getPage(String name, OpenFile file, int page, int length) {
+    CachedFile f = files.get(name);
+
+    Integer frame = f.frames.get(page);
+    if (frame != null) return share(frame);
+
+    int newFrame = UserKernel.getPage();
+    if (newFrame == -1) return -1;
+
+    byte[] memory = Machine.processor().getMemory();
+    int paddr = newFrame * Processor.pageSize;
+    int amount = Math.min(Processor.pageSize, length - page * Processor.pageSize);
+
+    if (file.read(page * Processor.pageSize, memory, paddr, amount) != amount) {
+      UserKernel.addPage(newFrame);
+      return -1;
+    }
+    Arrays.fill(memory, paddr + amount, paddr + Processor.pageSize, (byte) 0);
+
+    return install(f, page, newFrame);
+  }
+
+  /**
+   * Return the physical page holding a page of an executable's section, loading it from the
+   * executable if it is not cached. A reference to the page is added for the caller. Only
+   * read-only sections may be cached, since every process running the executable sees the same
+   * page.
+   *
+   * @param image the executable, whose key must be open in the cache.
+   * @param section the section, which must be read-only.
+   * @param spn the page of the section.
+   * @return the physical page number, or -1 if there is no free memory.
+   */
+  public int getPage(ImageCache.Image image, CoffSection section, int spn) {
+    Lib.assertTrue(section.isReadOnly());
+
+    CachedFile f = files.get(image.getKey());
+
+    // the sections of an executable do not overlap, so its pages are cached by virtual page
+    int page = section.getFirstVPN() + spn;
+
+    Integer frame = f.frames.get(page);
+    if (frame != null) return share(frame);
+
+    int newFrame = UserKernel.getPage();
+    if (newFrame == -1) return -1;
+
+    image.loadPage(section, spn, newFrame);
+
+    return install(f, page, newFrame);
+  }
+
+  /**
+   * Cache a page that has just been read, unless another process cached it while the read
+   * blocked, in which case the new copy is freed. A reference to the cached page is added for the
+   * caller.
+   */
+  private int install(CachedFile f, int page, int newFrame) {
+    Integer frame = f.frames.get(page);
+    if (frame == null) {
+      frame = newFrame;
+      f.frames.put(page, frame);
+    } else {
+      UserKernel.addPage(newFrame);
+    }
+
+    return share(frame);
+  }
+
+  private int share(int frame) {
+    UserKernel.sharePage(frame);
+    return frame;
+  }
+
+  /**
+   * Forget the cached copy of a page of a mapped file, after it has been written back, so that the
+   * next process to touch the page reads the new contents.
+   *
+   * @param name the name of the file, which must be open in the cache.
+   * @param page the page of the file.
+   */
+  public void invalidate(String name, int page) {
+    Integer frame = files.get(name).frames.remove(page);
+    if (frame != null) UserKernel.addPage(frame);
+  }
+
+  private static class CachedFile {
+    int mappings = 0;
+    /** The physical page caching each page of the file that has been read. */
+    HashMap<Integer, Integer> frames = new HashMap<Integer, Integer>();
+  }
+}
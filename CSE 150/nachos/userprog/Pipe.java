@@ -0,0 +1,197 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+import nachos.machine.OpenFile;
+import nachos.threads.Condition2;
+import nachos.threads.Lock;
+
+/**
+ * A pipe: a fixed-size ring buffer of bytes in the kernel, with a read end and a write end that
+ * can be opened as files. Bytes written to the write end can be read from the read end, in order,
+ * without going through the file system.
+ *
+ * <p>
+ *
+ * <p>A reader blocks while the pipe is empty, and returns as soon as any bytes are available. A
+ * writer blocks while the pipe is full, and returns once all its bytes have been written. To avoid
+ * a context switch for every few bytes, waiting threads are woken in batches: readers once a write
+ * fills the pipe or finishes, and writers only once at least <tt>lowWatermark</tt> bytes are free.
+ *
+ * <p>
+ *
+ * <p>When the write end is closed, readers see end-of-file once the pipe is empty. When the read
+ * end is closed, writes fail.
+ */
+public class Pipe {
+  /** The number of bytes a pipe can buffer. */
+  public static final int capacity = 4096;
+  /** Blocked writers are woken once at least this many bytes are free. */
+  public static final int lowWatermark = capacity / 2;
+
+  private byte[] buffer = new byte[capacity];
+  private int head = 0;
+  private int count = 0;
+  private boolean readerOpen = true, writerOpen = true;
+  private Lock lock = new Lock();
+  private Condition2 notEmpty = new Condition2(lock);
+  private Condition2 notFull = new Condition2(lock);
+  private int waitingReaders = 0, waitingWriters = 0;
+
+  /** Allocate a new, empty, pipe. */
+  public Pipe() {}
+
+  /**
+   * Return the read end of this pipe. The pipe's readers are gone once it is closed.
+   *
+   * @return a file that reads from this pipe.
+   */
+  public OpenFile getReadEnd() {
+    return new End(false);
+  }
+
+  /**
+   * Return the write end of this pipe. The pipe's writers are gone once it is closed.
+   *
+   * @return a file that writes to this pipe.
+   */
+  public OpenFile getWriteEnd() {
+    return new End(true);
+  }
+
+  /**
+   * Read up to <i>length</i> bytes, waiting until at least one byte is available.
+   *
+   * @return the number of bytes read, which is 0 only at end-of-file.
+   */
+  private int read(byte[] buf, int offset, int length) {
+    Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= buf.length);
+
+    if (length == 0) return 0;
+
+    lock.acquire();
+
+    while (count == 0 && writerOpen) {
+      waitingReaders++;
+      notEmpty.sleep();
+    }
+
+    int amount = Math.min(length, count);
+    // copy in at most two pieces, either side of the end of the buffer
+    int first = Math.min(amount, capacity - head);
+    System.arraycopy(buffer, head, buf, offset, first);
+    System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+    head = (head + amount) % capacity;
+    count -= amount;
+
+    if (waitingWriters > 0 && capacity - count >= lowWatermark) wakeWriters();
+
+    lock.release();
+
+    return amount;
+  }
+
+  /**
+   * Write all <i>length</i> bytes, waiting for room whenever the pipe is full.
+   *
+   * @return the number of bytes written, which is less than <i>length</i> only if the read end
+   *     has been closed, or -1 if it was closed before any were.
+   */
+  private int write(byte[] buf, int offset, int length) {
+    Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= buf.length);
+
+    lock.acquire();
+
+    int written = 0;
+    while (written < length && readerOpen) {
+      if (count == capacity) {
+        // hand what is buffered to the readers before waiting for them
+        wakeReaders();
+        waitingWriters++;
+        notFull.sleep();
+        continue;
+      }
+
+      int amount = Math.min(length - written, capacity - count);
+      int tail = (head + count) % capacity;
+      int first = Math.min(amount, capacity - tail);
+      System.arraycopy(buf, offset + written, buffer, tail, first);
+      System.arraycopy(buf, offset + written + first, buffer, 0, amount - first);
+      count += amount;
+      written += amount;
+    }
+
+    if (written > 0) wakeReaders();
+
+    lock.release();
+
+    return (written == 0 && length > 0) ? -1 : written;
+  }
+
+  /** Wake every waiting reader. The lock must be held. */
+  private void wakeReaders() {
+    if (waitingReaders == 0) return;
+
+    notEmpty.wakeAll();
+    waitingReaders = 0;
+  }
+
+  /** Wake every waiting writer. The lock must be held. */
+  private void wakeWriters() {
+    if (waitingWriters == 0) return;
+
+    notFull.wakeAll();
+    waitingWriters = 0;
+  }
+
+  /** Close one end of the pipe, waking the threads waiting at the other. */
+  private void close(boolean writeEnd) {
+    lock.acquire();
+
+    if (writeEnd) {
+      writerOpen = false;
+      wakeReaders();
+    } else {
+      readerOpen = false;
+      wakeWriters();
+    }
+
+    lock.release();
+  }
+
+  private class End extends OpenFile {
+    private boolean writeEnd;
+    private boolean open = true;
+
+    End(boolean writeEnd) {
+      super(null, "Pipe");
+
+      this.writeEnd = writeEnd;
+    }
+
+    public void close() {
+      if (!open) return;
+
+      open = false;
+      Pipe.this.close(writeEnd);
+    }
+
+    /** The read end's length is the number of bytes that can be read without waiting. */
+    public int length() {
+      if (!open || writeEnd) return -1;
+
+      return count;
+    }
+
+    public int read(byte[] buf, int offset, int length) {
+      if (!open || writeEnd) return -1;
+
+      return Pipe.this.read(buf, offset, length);
+    }
+
+    public int write(byte[] buf, int offset, int length) {
+      if (!open || !writeEnd) return -1;
+
+      return Pipe.this.write(buf, offset, length);
+    }
+  }
+}
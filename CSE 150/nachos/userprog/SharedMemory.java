@@ -0,0 +1,173 @@
+package nachos.userprog;
+
+import nachos.machine.Machine;
+import nachos.machine.Processor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The kernel-wide table of shared memory segments. A segment is a set of physical pages that any
+ * number of processes can map into their address spaces, so that they can exchange data at memory
+ * speed. Each segment has a key, chosen by the processes that use it, and an ID, chosen by the
+ * kernel.
+ *
+ * <p>
+ *
+ * <p>A segment holds one reference to each of its pages, and every process it is attached to
+ * holds another. A segment is destroyed when the last process attached to it detaches or exits;
+ * its pages are then freed once no process maps them. The process that creates a segment holds it
+ * until it attaches the segment itself or exits, so a segment that is never attached does not
+ * outlive its creator.
+ */
+public class SharedMemory {
+  /** The key that always creates a new segment, which other processes cannot look up. */
+  public static final int keyPrivate = 0;
+
+  private HashMap<Integer, Segment> segmentsByID = new HashMap<Integer, Segment>();
+  private HashMap<Integer, Segment> segmentsByKey = new HashMap<Integer, Segment>();
+  private int nextID = 1;
+
+  /** Allocate a new, empty, shared memory table. */
+  public SharedMemory() {}
+
+  /**
+   * Look up the segment with the specified key, creating it if there is none. A new segment is
+   * filled with zeros.
+   *
+   * @param key the key of the segment, or <tt>keyPrivate</tt> for a new segment.
+   * @param size the minimum size of the segment, in bytes.
+   * @param process the calling process, which holds the segment if it is created.
+   * @return the ID of the segment, or -1 if the existing segment is smaller than <i>size</i> or
+   *     there is not enough free memory to create one.
+   */
+  public int get(int key, int size, UserProcess process) {
+    if (size <= 0) return -1;
+
+    int numPages = (int) (((long) size + Processor.pageSize - 1) / Processor.pageSize);
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    Segment segment = (key == keyPrivate) ? null : segmentsByKey.get(key);
+    if (segment == null) {
+      int[] frames = UserKernel.getPages(numPages);
+      if (frames != null) {
+        byte[] memory = Machine.processor().getMemory();
+        for (int frame : frames) {
+          Arrays.fill(memory, frame * Processor.pageSize, (frame + 1) * Processor.pageSize, (byte) 0);
+        }
+
+        segment = new Segment(nextID++, key, frames);
+        segment.creator = process;
+        segment.attached++;
+        segmentsByID.put(segment.id, segment);
+        if (key != keyPrivate) segmentsByKey.put(key, segment);
+      }
+    } else if (numPages > segment.frames.length) {
+      segment = null;
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    return (segment != null) ? segment.id : -1;
+  }
+
+  /**
+   * Record that a process has attached the segment with the specified ID. If the process created
+   * the segment and still holds it, that hold becomes its attachment.
+   *
+   * @param id the ID of the segment.
+   * @param process the attaching process.
+   * @return the segment, or <tt>null</tt> if there is no segment with that ID.
+   */
+  public Segment attach(int id, UserProcess process) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    Segment segment = segmentsByID.get(id);
+    if (segment != null) {
+      if (segment.creator == process) segment.creator = null;
+      else segment.attached++;
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    return segment;
+  }
+
+  /**
+   * Record that a process has detached a segment, and destroy the segment if it was the last one.
+   *
+   * @param segment the segment.
+   */
+  public void detach(Segment segment) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    if (--segment.attached == 0) destroy(segment);
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Drop the hold a process has on each segment it created but never attached, destroying those
+   * that no other process has attached. Called when the process exits.
+   *
+   * @param process the process.
+   */
+  public void release(UserProcess process) {
+    boolean intStatus = Machine.interrupt().disable();
+
+    for (Iterator<Segment> it = segmentsByID.values().iterator(); it.hasNext(); ) {
+      Segment segment = it.next();
+      if (segment.creator != process) continue;
+
+      segment.creator = null;
+      if (--segment.attached == 0) {
+        it.remove();
+        destroy(segment);
+      }
+    }
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /** Forget a segment that nothing holds, and free its pages. Interrupts must be disabled. */
+  private void destroy(Segment segment) {
+    segmentsByID.remove(segment.id);
+    if (segment.key != keyPrivate) segmentsByKey.remove(segment.key);
+    UserKernel.addPages(segment.frames);
+  }
+
+  /** A shared memory segment. */
+  public static class Segment {
+    private int id, key;
+    private int[] frames;
+    private int attached = 0;
+    /** The process that created this segment, while it holds the segment without attaching it. */
+    private UserProcess creator = null;
+
+    private Segment(int id, int key, int[] frames) {
+      this.id = id;
+      this.key = key;
+      this.frames = frames;
+    }
+
+    /**
+     * Return the ID of this segment.
+     *
+     * @return the segment ID.
+     */
+    public int getID() {
+      return id;
+    }
+
+    /**
+     * Return the physical pages of this segment, in order.
+     *
+     * @return the page numbers. The caller must not modify the array.
+     */
+    public int[] getFrames() {
+      return frames;
+    }
+  }
+}
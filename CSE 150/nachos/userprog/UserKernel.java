@@ -1,6 +1,7 @@
 package nachos.userprog;
 
 import nachos.machine.Coff;
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
@@ -8,7 +9,7 @@ import nachos.threads.KThread;
 import nachos.threads.ThreadedKernel;
 
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 
 /** A kernel that can support multiple user processes. */
 public class UserKernel extends ThreadedKernel {
@@ -16,8 +17,29 @@ public class UserKernel extends ThreadedKernel {
   public static HashMap<Integer, UserProcess> UPMap = new HashMap<Integer, UserProcess>();
   /** Globally accessible reference to the synchronized console. */
   public static SynchConsole console;
-  // global linked list of free physical pages
-  private static LinkedList<Integer> freePhysPages = new LinkedList<Integer>();
+  /** Globally accessible table of shared memory segments. */
+  public static SharedMemory sharedMemory;
+  /** Globally accessible cache of the pages of memory-mapped files. */
+  public static PageCache pageCache;
+  /** Globally accessible cache of the read-only pages of running executables. */
+  public static PageCache textCache;
+  /** Globally accessible cache of parsed executables. */
+  public static ImageCache imageCache;
+  /** The size of the kernel's bounce buffer, in bytes. */
+  public static final int bounceSize = 16 * Processor.pageSize;
+  // global allocator of free physical pages
+  private static FrameAllocator freePhysPages;
+  // kernel-wide open-file table: the number of open descriptions of each named file
+  private static HashMap<String, Integer> openFiles = new HashMap<String, Integer>();
+  // files unlinked while open, removed when their last description is closed
+  private static HashSet<String> unlinkedFiles = new HashSet<String>();
+  // when each file was last changed by a process, on a clock that ticks once per change
+  private static HashMap<String, Long> modificationTimes = new HashMap<String, Long>();
+  private static long modificationClock = 0;
+  // physical page where the clock is published, mapped read-only into every process
+  private static int timePage = -1;
+  // the bounce buffer runs of memory are gathered into, or null while a transfer has it
+  private static byte[] bounceBuffer = new byte[bounceSize];
   // use to uniquely identify processes
   private static int nextProcessID = 0;
   private static int ROOT = 1;
@@ -40,22 +62,176 @@ public class UserKernel extends ThreadedKernel {
     return ((UThread) KThread.currentThread()).process;
   }
 
-  // get a free page from the list of available pages
+  // get a free page, or -1 if there is none
   public static int getPage() {
     boolean status = Machine.interrupt().disable();
-    int page = -1;
-    if (freePhysPages.getFirst() != null) page = freePhysPages.pop();
+    int page = freePhysPages.allocate();
     Machine.interrupt().restore(status);
     return page;
   }
 
-  // add a page back to the list
+  // get count free pages, contiguous if possible, or null if there are not enough
+  public static int[] getPages(int count) {
+    boolean status = Machine.interrupt().disable();
+    int[] pages = freePhysPages.allocate(count);
+    Machine.interrupt().restore(status);
+    return pages;
+  }
+
+  // give a page back
   public static void addPage(int toAdd) {
     boolean status = Machine.interrupt().disable();
-    freePhysPages.push(toAdd);
+    freePhysPages.free(toAdd);
+    Machine.interrupt().restore(status);
+  }
+
+  // give a number of pages back at once
+  public static void addPages(int[] toAdd) {
+    boolean status = Machine.interrupt().disable();
+    freePhysPages.free(toAdd);
+    Machine.interrupt().restore(status);
+  }
+
+  // add a reference to a page, which is then only freed once every reference is
+  public static void sharePage(int page) {
+    boolean status = Machine.interrupt().disable();
+    freePhysPages.share(page);
+    Machine.interrupt().restore(status);
+  }
+
+  // take the bounce buffer, or null if another transfer is using it
+  public static byte[] takeBounceBuffer() {
+    boolean status = Machine.interrupt().disable();
+    byte[] buffer = bounceBuffer;
+    bounceBuffer = null;
+    Machine.interrupt().restore(status);
+    return buffer;
+  }
+
+  // give the bounce buffer back once a transfer is done with it
+  public static void returnBounceBuffer(byte[] buffer) {
+    boolean status = Machine.interrupt().disable();
+    bounceBuffer = buffer;
+    Machine.interrupt().restore(status);
+  }
+
+  // test if more than one reference to a page is held
+  public static boolean isPageShared(int page) {
+    return freePhysPages.isShared(page);
+  }
+
+  /**
+   * Returns the number of physical pages that are not in use.
+   *
+   * @return the number of free pages.
+   */
+  public static int getNumFreePages() {
+    return freePhysPages.getNumFree();
+  }
+
+  /**
+   * Returns the physical page holding the shared clock. It contains the low and then the high 32
+   * bits of <tt>Stats.totalTicks</tt>, updated on every timer interrupt.
+   *
+   * @return the physical page number of the time page.
+   */
+  public static int getTimePage() {
+    return timePage;
+  }
+
+  // copy the current time into the time page, and do it again on the next timer interrupt
+  private static void publishTime() {
+    byte[] memory = Machine.processor().getMemory();
+    long time = Machine.timer().getTime();
+    int paddr = timePage * Processor.pageSize;
+
+    Lib.bytesFromInt(memory, paddr, (int) time);
+    Lib.bytesFromInt(memory, paddr + 4, (int) (time >>> 32));
+
+    alarm.schedule(
+        1,
+        new Runnable() {
+          public void run() {
+            publishTime();
+          }
+        });
+  }
+
+  /**
+   * Record in the open-file table that a new description of the named file has been opened.
+   *
+   * @param name the name of the file.
+   * @return <tt>false</tt> if the file has been unlinked and cannot be opened again.
+   */
+  public static boolean openFile(String name) {
+    boolean status = Machine.interrupt().disable();
+    boolean opened = !unlinkedFiles.contains(name);
+    if (opened) {
+      Integer count = openFiles.get(name);
+      openFiles.put(name, (count == null) ? 1 : count + 1);
+    }
+    Machine.interrupt().restore(status);
+    return opened;
+  }
+
+  /**
+   * Record in the open-file table that a description of the named file has been closed. If it was
+   * the last one, and the file was unlinked while open, remove the file now.
+   *
+   * @param name the name of the file.
+   * @return <tt>false</tt> if the file had to be removed, and could not be.
+   */
+  public static boolean closeFile(String name) {
+    boolean status = Machine.interrupt().disable();
+    int count = openFiles.get(name) - 1;
+    boolean remove = (count == 0 && unlinkedFiles.remove(name));
+    if (count == 0) openFiles.remove(name);
+    else openFiles.put(name, count);
+    Machine.interrupt().restore(status);
+    return !remove || fileSystem.remove(name);
+  }
+
+  /**
+   * Remove the named file. If any process has it open, it is removed once the last description of
+   * it is closed, and cannot be opened again until then.
+   *
+   * @param name the name of the file.
+   * @return <tt>false</tt> if the file could not be removed.
+   */
+  public static boolean unlinkFile(String name) {
+    touchFile(name);
+    boolean status = Machine.interrupt().disable();
+    boolean open = openFiles.containsKey(name);
+    if (open) unlinkedFiles.add(name);
+    Machine.interrupt().restore(status);
+    return open || fileSystem.remove(name);
+  }
+
+  /**
+   * Record that a process has changed the named file, by creating, writing or unlinking it.
+   *
+   * @param name the name of the file.
+   */
+  public static void touchFile(String name) {
+    boolean status = Machine.interrupt().disable();
+    modificationTimes.put(name, ++modificationClock);
     Machine.interrupt().restore(status);
   }
 
+  /**
+   * Return when the named file was last changed by a process. The times are only meaningful
+   * compared with each other: a file that has changed since an earlier call has a different time.
+   *
+   * @param name the name of the file.
+   * @return the modification time, or 0 if no process has changed the file.
+   */
+  public static long getModificationTime(String name) {
+    boolean status = Machine.interrupt().disable();
+    Long time = modificationTimes.get(name);
+    Machine.interrupt().restore(status);
+    return (time == null) ? 0 : time;
+  }
+
   public static int getID() {
     Machine.interrupt().disable();
     nextProcessID++;
@@ -94,6 +270,10 @@ public class UserKernel extends ThreadedKernel {
     super.initialize(args);
 
     console = new SynchConsole(Machine.console());
+    sharedMemory = new SharedMemory();
+    pageCache = new PageCache();
+    textCache = new PageCache();
+    imageCache = new ImageCache(Config.getInteger("UserKernel.imageCacheSize", 4));
 
     Machine.processor()
         .setExceptionHandler(
@@ -103,8 +283,12 @@ public class UserKernel extends ThreadedKernel {
               }
             });
 
-    // initializing free physical pages inside of global linked list
-    for (int i = 0; i < Machine.processor().getNumPhysPages(); i++) freePhysPages.add(i);
+    // initially every physical page is free
+    freePhysPages = new FrameAllocator(Machine.processor().getNumPhysPages());
+
+    // the time page is shared by every process, and never freed
+    timePage = getPage();
+    publishTime();
   }
 
   /** Test the console device. */
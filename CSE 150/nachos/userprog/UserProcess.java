@@ -1,10 +1,15 @@
 package nachos.userprog;
 
 import nachos.machine.*;
+import nachos.threads.Condition2;
 import nachos.threads.KThread;
+import nachos.threads.Lock;
 import nachos.threads.ThreadedKernel;
 
-import java.io.EOFException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 /**
@@ -30,21 +35,58 @@ public class UserProcess {
       syscallRead = 6,
       syscallWrite = 7,
       syscallClose = 8,
-      syscallUnlink = 9;
+      syscallUnlink = 9,
+      syscallMmap = 10,
+      syscallSleep = 13,
+      syscallGetTime = 14,
+      syscallReadv = 15,
+      syscallWritev = 16,
+      syscallDup = 17,
+      syscallDup2 = 18,
+      syscallFork = 19,
+      syscallShmget = 20,
+      syscallShmat = 21,
+      syscallShmdt = 22,
+      syscallPipe = 23,
+      syscallIoEnter = 24;
+  /** The most segments a single <tt>readv()</tt> or <tt>writev()</tt> may transfer. */
+  private static final int maxIovecs = 64;
   private static final int pageSize = Processor.pageSize;
   private static final char dbgProcess = 'a';
   /** The number of pages in the program's stack. */
   protected final int stackPages = 8;
   /** The program being run by this process. */
   protected Coff coff;
+  /** The cached image <tt>coff</tt> belongs to; its key names the program's read-only pages. */
+  protected ImageCache.Image image;
   /** This process's page table. */
   protected TranslationEntry[] pageTable;
+  /** The read-only pages of <tt>pageTable</tt> that are copied on the first write to them. */
+  protected boolean[] copyOnWrite;
   /** The number of contiguous pages occupied by the program. */
   protected int numPages;
-  // Creates an array of files to store files into processor
-  protected FileAllocator falloc[] = new FileAllocator[16];
+  /** The shared memory segments attached to this process, by their first virtual page. */
+  protected HashMap<Integer, SharedMemory.Segment> attachments =
+      new HashMap<Integer, SharedMemory.Segment>();
+  /** The files mapped into this process by <tt>mmap()</tt>, by file descriptor. */
+  protected HashMap<Integer, Mapping> mappings = new HashMap<Integer, Mapping>();
+  /** The ring this process submits asynchronous I/O through, once it has used one. */
+  protected IORing ioRing = null;
+  /** The number of asynchronous operations using each pinned virtual page. */
+  private HashMap<Integer, Integer> pins = new HashMap<Integer, Integer>();
+  private Lock pinLock = new Lock();
+  /** Signalled when pages are unpinned. */
+  private Condition2 unpinned = new Condition2(pinLock);
+  /** The most file descriptors a process may have. */
+  protected static final int maxFileDescriptors = 1024;
+  /** This process's file descriptor table. A <tt>null</tt> entry is a free descriptor. */
+  protected ArrayList<FileAllocator> falloc = new ArrayList<FileAllocator>();
+  // closed descriptors to reuse; may also hold ones since taken again by dup2()
+  private ArrayDeque<Integer> freeDescriptors = new ArrayDeque<Integer>();
   private int initialPC, initialSP;
-  private int argc, argv;
+  private int argc, argv, clock;
+  // the registers a forked process starts with, or null to start the program
+  private int[] forkRegisters = null;
   private int parentID;
   private LinkedList<Integer> childrenID = new LinkedList<Integer>();
   private int myID;
@@ -76,15 +118,11 @@ public class UserProcess {
 
     // initialize my ID
 
-    for (int i = 0; i < 16; i++) falloc[i] = new FileAllocator();
-
     // STDIN
-    falloc[0].file = UserKernel.console.openForReading();
-    falloc[0].pos = 0;
+    allocateDescriptor(UserKernel.console.openForReading(), null);
 
     // STDOUT
-    falloc[1].file = UserKernel.console.openForWriting();
-    falloc[1].pos = 0;
+    allocateDescriptor(UserKernel.console.openForWriting(), null);
 
     myID = UserKernel.getID();
     UserKernel.addProcess(myID, this);
@@ -221,10 +259,7 @@ public class UserProcess {
 
     while (transfer < data.length && length > 0) {
       int vpn = Processor.pageFromAddress(vaddr);
-      if (pageTable == null
-          || vpn >= pageTable.length
-          || pageTable[vpn] == null
-          || !pageTable[vpn].valid) {
+      if (!isAccessible(vpn, write)) {
         break;
       }
       int pageOffset = Processor.offsetFromAddress(vaddr) % Processor.pageSize;
@@ -248,6 +283,23 @@ public class UserProcess {
     return transfer;
   }
 
+  /**
+   * Make sure a virtual page can be accessed by the kernel, resolving a page fault on it the same
+   * way as for the user program.
+   *
+   * @param vpn the virtual page.
+   * @param write <tt>true</tt> if the page will be written.
+   * @return <tt>true</tt> if the page is valid, and writable if needed.
+   */
+  protected boolean isAccessible(int vpn, boolean write) {
+    if (pageTable == null || vpn >= pageTable.length) return false;
+
+    if ((pageTable[vpn] == null || !pageTable[vpn].valid)
+        && !handlePageFault(Processor.exceptionPageFault, vpn)) return false;
+
+    return !write || !pageTable[vpn].readOnly || handlePageFault(Processor.exceptionReadOnly, vpn);
+  }
+
   /**
    * Load the executable with the specified name into this process, and prepare to pass it the
    * specified arguments. Opens the executable, reads its header information, and copies sections
@@ -260,26 +312,17 @@ public class UserProcess {
   private boolean load(String name, String[] args) {
     Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-    OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-    if (executable == null) {
-      Lib.debug(dbgProcess, "\topen failed");
-      return false;
-    }
-
-    try {
-      coff = new Coff(executable);
-    } catch (EOFException e) {
-      executable.close();
-      Lib.debug(dbgProcess, "\tcoff load failed");
-      return false;
-    }
+    // reuse the parsed executable if it has been run before
+    image = UserKernel.imageCache.open(name);
+    if (image == null) return false;
+    coff = image.getCoff();
 
     // make sure the sections are contiguous and start at page 0
     numPages = 0;
     for (int s = 0; s < coff.getNumSections(); s++) {
       CoffSection section = coff.getSection(s);
       if (section.getFirstVPN() != numPages) {
-        coff.close();
+        UserKernel.imageCache.close(image);
         Lib.debug(dbgProcess, "\tfragmented executable");
         return false;
       }
@@ -295,7 +338,7 @@ public class UserProcess {
       argsSize += 4 + argv[i].length + 1;
     }
     if (argsSize > pageSize) {
-      coff.close();
+      UserKernel.imageCache.close(image);
       Lib.debug(dbgProcess, "\targuments too long");
       return false;
     }
@@ -307,25 +350,31 @@ public class UserProcess {
     numPages += stackPages;
     initialSP = numPages * pageSize;
 
-    // and finally reserve 1 page for arguments
+    // then reserve 1 page for arguments
     numPages++;
 
-    /* Initialize the pageTable based on the executable to run */
-    pageTable = new TranslationEntry[numPages];
+    // and finally map the shared time page, read-only, after the arguments
+    numPages++;
+    clock = (numPages - 1) * pageSize;
 
-    for (int i = 0; i < numPages; i++) {
+    /* Initialize the pageTable; loadSections() fills in the rest */
+    pageTable = new TranslationEntry[numPages];
+    copyOnWrite = new boolean[numPages];
 
-      // Mapping virtual address to physical address
-      // removing from linked list to show pages are being used
-      pageTable[i] = new TranslationEntry(i, UserKernel.getPage(), true, false, false, false);
-    }
+    pageTable[numPages - 1] =
+        new TranslationEntry(numPages - 1, UserKernel.getTimePage(), true, true, false, false);
 
-    /* End of pageTable initialization */
+    // share the program's read-only pages with other processes running it
+    UserKernel.textCache.open(image.getKey());
 
-    if (!loadSections()) return false;
+    if (!loadSections()) {
+      UserKernel.textCache.close(image.getKey());
+      image = null;
+      return false;
+    }
 
-    // store arguments in last page
-    int entryOffset = (numPages - 1) * pageSize;
+    // store arguments in the page before the time page
+    int entryOffset = (numPages - 2) * pageSize;
     int stringOffset = entryOffset + args.length * 4;
 
     this.argc = args.length;
@@ -353,10 +402,32 @@ public class UserProcess {
    */
   protected boolean loadSections() {
     if (numPages > Machine.processor().getNumPhysPages()) {
-      coff.close();
+      UserKernel.imageCache.close(image);
+      Lib.debug(dbgProcess, "\tinsufficient physical memory");
+      return false;
+    }
+
+    // read-only pages come from the text cache, so only the rest need new frames
+    int numShared = 0;
+    for (int s = 0; s < coff.getNumSections(); s++) {
+      if (coff.getSection(s).isReadOnly()) numShared += coff.getSection(s).getLength();
+    }
+
+    // take every other physical page the process needs at once, contiguous if possible
+    int[] frames = UserKernel.getPages(numPages - 1 - numShared);
+    if (frames == null) {
+      UserKernel.imageCache.close(image);
       Lib.debug(dbgProcess, "\tinsufficient physical memory");
       return false;
     }
+    Lib.debug(dbgProcess, "\t" + UserKernel.getNumFreePages() + " physical pages left free");
+
+    int next = 0;
+    for (int i = numPages - 1 - stackPages - 1; i < numPages - 1; i++) {
+
+      // Mapping virtual address to physical address
+      pageTable[i] = new TranslationEntry(i, frames[next++], true, false, false, false);
+    }
 
     // load sections
     for (int s = 0; s < coff.getNumSections(); s++) {
@@ -369,14 +440,26 @@ public class UserProcess {
       for (int i = 0; i < section.getLength(); i++) {
         int vpn = section.getFirstVPN() + i;
 
-        // for now, just assume virtual addresses=physical addresses
-        // section.loadPage(i, vpn);
-
-        // use the ppn to load the page
-        section.loadPage(i, pageTable[vpn].ppn);
-
-        // match pageTable information with section
-        pageTable[vpn].readOnly = section.isReadOnly();
+        if (!section.isReadOnly()) {
+          // use the ppn to load the page
+          pageTable[vpn] = new TranslationEntry(vpn, frames[next++], true, false, false, false);
+          image.loadPage(section, i, pageTable[vpn].ppn);
+          continue;
+        }
+
+        int ppn = UserKernel.textCache.getPage(image, section, i);
+        if (ppn == -1) {
+          // give back the pages taken so far
+          for (int j = 0; j < numPages - 1; j++) {
+            if (pageTable[j] != null) UserKernel.addPage(pageTable[j].ppn);
+            pageTable[j] = null;
+          }
+          UserKernel.addPages(Arrays.copyOfRange(frames, next, frames.length));
+          UserKernel.imageCache.close(image);
+          Lib.debug(dbgProcess, "\tinsufficient physical memory");
+          return false;
+        }
+        pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
       }
     }
 
@@ -385,12 +468,27 @@ public class UserProcess {
 
   /** Release any resources allocated by <tt>loadSections()</tt>. */
   protected void unloadSections() {
-    // re-add entries to list of free physical pages
+    // give back every physical page at once, except the shared time page
+    int[] frames = new int[pageTable.length];
+    int count = 0;
     for (int i = 0; i < pageTable.length; i++) {
-      UserKernel.addPage(pageTable[i].ppn);
+      if (pageTable[i] == null) continue;
+      if (pageTable[i].valid && pageTable[i].ppn != UserKernel.getTimePage())
+        frames[count++] = pageTable[i].ppn;
       // released, so the pages are no longer valid
       pageTable[i].valid = false;
     }
+    UserKernel.addPages(Arrays.copyOf(frames, count));
+    // and detach from shared memory
+    for (SharedMemory.Segment segment : attachments.values()) UserKernel.sharedMemory.detach(segment);
+    attachments.clear();
+    UserKernel.sharedMemory.release(this);
+    // and stop sharing the program's read-only pages
+    if (image != null) {
+      UserKernel.textCache.close(image.getKey());
+      UserKernel.imageCache.close(image);
+    }
+    image = null;
     // delete pageTable
     pageTable = null;
   }
@@ -398,22 +496,31 @@ public class UserProcess {
   /**
    * Initialize the processor's registers in preparation for running the program loaded into this
    * process. Set the PC register to point at the start function, set the stack pointer register to
-   * point at the top of the stack, set the A0 and A1 registers to argc and argv, respectively, and
-   * initialize all other registers to 0.
+   * point at the top of the stack, set the A0, A1 and A2 registers to argc, argv and the address of
+   * the time page, respectively, and initialize all other registers to 0.
    */
   public void initRegisters() {
     Processor processor = Machine.processor();
 
+    // a forked process carries on from its parent's fork() call
+    if (forkRegisters != null) {
+      for (int i = 0; i < Processor.numUserRegisters; i++)
+        processor.writeRegister(i, forkRegisters[i]);
+      forkRegisters = null;
+      return;
+    }
+
     // by default, everything's 0
-    for (int i = 0; i < processor.numUserRegisters; i++) processor.writeRegister(i, 0);
+    for (int i = 0; i < Processor.numUserRegisters; i++) processor.writeRegister(i, 0);
 
     // initialize PC and SP according
     processor.writeRegister(Processor.regPC, initialPC);
     processor.writeRegister(Processor.regSP, initialSP);
 
-    // initialize the first two argument registers to argc and argv
+    // initialize the first three argument registers to argc, argv and the clock
     processor.writeRegister(Processor.regA0, argc);
     processor.writeRegister(Processor.regA1, argv);
+    processor.writeRegister(Processor.regA2, clock);
   }
 
   /** Handle the halt() system call. */
@@ -426,98 +533,322 @@ public class UserProcess {
   }
 
   private int handleCreate(int a0) {
-    String nameFile = readVirtualMemoryString(a0, 256);
-    OpenFile nFile = UserKernel.fileSystem.open(nameFile, true);
-    FileAllocator pristFile = new FileAllocator(nFile, nameFile);
-
-    if (nFile == null) return -1;
-    else {
-      int pgIndex = emptyFileSlotFinder();
-      if (pgIndex == -1) return -1;
-      else {
-        falloc[pgIndex] = pristFile;
-        return pgIndex;
-      }
-    }
+    return openNamedFile(readVirtualMemoryString(a0, 256), true);
   }
 
   private int handleOpen(int a0) {
-    String nameFile = readVirtualMemoryString(a0, 256);
-    OpenFile nFile = UserKernel.fileSystem.open(nameFile, false);
-    FileAllocator pristFile = new FileAllocator(nFile, nameFile);
+    return openNamedFile(readVirtualMemoryString(a0, 256), false);
+  }
 
-    if (nFile == null) return -1;
-    else {
-      int pgIndex = emptyFileSlotFinder();
-      if (pgIndex == -1) return -1;
-      else {
-        falloc[pgIndex] = pristFile;
-        return pgIndex;
-      }
+  private int openNamedFile(String nameFile, boolean create) {
+    if (nameFile == null || !UserKernel.openFile(nameFile)) return -1;
+
+    OpenFile nFile = UserKernel.fileSystem.open(nameFile, create);
+    if (nFile == null) {
+      UserKernel.closeFile(nameFile);
+      return -1;
     }
+    // creat() truncates the file
+    if (create) UserKernel.touchFile(nameFile);
+
+    return allocateDescriptor(nFile, nameFile);
   }
 
   private int handleRead(int indiFile, int virtAddrs, int byteCount) {
-    if (indiFile < 0 || indiFile > 15 || falloc[indiFile].file == null) return -1;
-
-    int readVal;
-    byte[] bytCArr = new byte[byteCount];
+    FileAllocator f = getDescriptor(indiFile);
+    if (f == null || f.mapped > 0 || byteCount < 0) return -1;
 
-    readVal = falloc[indiFile].file.read(falloc[indiFile].pos, bytCArr, 0, byteCount);
+    int readVal = transferFile(f, new int[] {virtAddrs, byteCount}, false);
 
     if (readVal == -1) return -1;
     else {
-      falloc[indiFile].pos = falloc[indiFile].pos + writeVirtualMemory(virtAddrs, bytCArr);
+      f.pos = f.pos + readVal;
       return readVal;
     }
   }
 
   private int handleWrite(int indiFile, int virtAddrs, int byteCount) {
-    if (indiFile < 0 || indiFile > 15 || falloc[indiFile].file == null) return -1;
-
-    byte[] bytCArr = new byte[byteCount];
-    int numBytes = readVirtualMemory(virtAddrs, bytCArr);
-    int writeBVal;
+    FileAllocator f = getDescriptor(indiFile);
+    if (f == null || f.mapped > 0 || byteCount < 0) return -1;
 
-    writeBVal = falloc[indiFile].file.write(falloc[indiFile].pos, bytCArr, 0, numBytes);
+    int writeBVal = transferFile(f, new int[] {virtAddrs, byteCount}, true);
 
     if (writeBVal == -1) return -1;
     else {
-      falloc[indiFile].pos = falloc[indiFile].pos + writeBVal;
+      f.pos = f.pos + writeBVal;
       return writeBVal;
     }
   }
 
-  private int handleClose(int indiFile) {
-    if (indiFile < 0 || indiFile > 15 || falloc[indiFile].file == null) return -1;
+  /**
+   * Transfer data between a buffer and an open file for an asynchronous operation, at the specified
+   * file offset, or at and past the file's position if the offset is -1.
+   *
+   * @return the number of bytes transferred, or -1 if an error occurred.
+   */
+  protected int transferAt(FileAllocator f, int vaddr, int length, int offset, boolean toFile) {
+    if (f.mapped > 0 || length < 0) return -1;
+
+    if (offset != -1) {
+      // leave the shared position alone
+      FileAllocator at = new FileAllocator(f.file, f.name);
+      at.pos = offset;
+      return transferFile(at, new int[] {vaddr, length}, toFile);
+    }
 
-    falloc[indiFile].pos = 0;
-    falloc[indiFile].file.close();
-    falloc[indiFile].file = null;
-    boolean successful = true;
+    int count = transferFile(f, new int[] {vaddr, length}, toFile);
+    if (count > 0) f.pos += count;
 
-    if (falloc[indiFile].unlinked) {
-      successful = UserKernel.fileSystem.remove(falloc[indiFile].name);
-      falloc[indiFile].unlinked = false;
+    return count;
+  }
+
+  /**
+   * Handle the io_enter() system call. The first call sets up the process's ring at
+   * <tt>ring</tt>; later calls must pass the same address.
+   *
+   * <p>Returns the number of operations submitted, or -1 if an error occurred.
+   */
+  private int handleIoEnter(int ring, int minComplete) {
+    if (ioRing == null) ioRing = new IORing(this, ring);
+    else if (ioRing.getAddress() != ring) return -1;
+
+    return ioRing.enter(minComplete);
+  }
+
+  /**
+   * Handle the readv() and writev() system calls. Read the array of <tt>iovcnt</tt> iovec
+   * structures at <tt>iov</tt>, each a buffer address followed by its length, and transfer all the
+   * buffers in order as if they were one.
+   *
+   * <p>Returns the number of bytes transferred, or -1 if an error occurred.
+   */
+  private int handleVector(int indiFile, int iov, int iovcnt, boolean toFile) {
+    FileAllocator f = getDescriptor(indiFile);
+    if (f == null || f.mapped > 0) return -1;
+    if (iovcnt < 0 || iovcnt > maxIovecs) return -1;
+
+    byte[] iovBytes = new byte[iovcnt * 8];
+    if (readVirtualMemory(iov, iovBytes) != iovBytes.length) return -1;
+
+    int[] segments = new int[iovcnt * 2];
+    long total = 0;
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = Lib.bytesToInt(iovBytes, i * 4);
+      if (i % 2 == 1) {
+        if (segments[i] < 0) return -1;
+        total += segments[i];
+      }
+    }
+    if (total > Integer.MAX_VALUE) return -1;
+
+    int transferred = transferFile(f, segments, toFile);
+
+    if (transferred == -1) return -1;
+    else {
+      f.pos = f.pos + transferred;
+      return transferred;
+    }
+  }
+
+  /**
+   * Transfer data between an open file and this process's virtual memory, starting at the file's
+   * current position. Consecutive segments that are contiguous in physical memory are coalesced
+   * into runs. A transfer that is a single run reads or writes straight into or out of main memory,
+   * so the data is copied only once; one that spans several runs goes through a bounce buffer
+   * instead, since every call on a file can cost a disk or network delay. Stops at the first
+   * invalid page, read-only page (when reading from the file), or short transfer.
+   *
+   * @param f the open file.
+   * @param segments the virtual address and length of each buffer, in pairs.
+   * @param toFile <tt>true</tt> to write memory to the file, <tt>false</tt> to read the file into
+   *     memory.
+   * @return the number of bytes transferred, or -1 if the file failed before any were.
+   */
+  protected int transferFile(FileAllocator f, int[] segments, boolean toFile) {
+    byte[] memory = Machine.processor().getMemory();
+
+    // consoles and connections ignore the position; stub files need it
+    f.file.seek(f.pos);
+    if (toFile && f.name != null) UserKernel.touchFile(f.name);
+
+    int transfer = 0;
+    // the physically contiguous runs not yet handed to the file, as address and length pairs
+    LinkedList<int[]> runs = new LinkedList<int[]>();
+    int pending = 0;
+    boolean stopped = false;
+
+    for (int i = 0; i < segments.length && !stopped; i += 2) {
+      int vaddr = segments[i];
+      int length = segments[i + 1];
+
+      while (length > 0) {
+        int vpn = Processor.pageFromAddress(vaddr);
+        if (!isAccessible(vpn, !toFile)) {
+          stopped = true;
+          break;
+        }
+        int pageOffset = Processor.offsetFromAddress(vaddr);
+        int paddr = Processor.makeAddress(pageTable[vpn].ppn, pageOffset);
+        int amount = Math.min(length, pageSize - pageOffset);
+
+        pageTable[vpn].used = true;
+        if (!toFile) pageTable[vpn].dirty = true;
+
+        int[] last = runs.peekLast();
+        boolean extend = (last != null && paddr == last[0] + last[1]);
+        // a lone run is transferred in place at any size, but several must fit the bounce buffer
+        if (pending + amount > UserKernel.bounceSize && !(extend && runs.size() == 1)) {
+          if (wouldBlock(f, transfer, toFile)) return transfer;
+          int count = transferRuns(f, memory, runs, pending, toFile);
+          if (count == -1) return (transfer == 0) ? -1 : transfer;
+          transfer += count;
+          if (count < pending) return transfer;
+          runs.clear();
+          pending = 0;
+          extend = false;
+        }
+        if (extend) last[1] += amount;
+        else runs.add(new int[] {paddr, amount});
+        pending += amount;
+
+        vaddr += amount;
+        length -= amount;
+      }
     }
 
-    falloc[indiFile].name = "";
+    if (pending > 0 && !wouldBlock(f, transfer, toFile)) {
+      int count = transferRuns(f, memory, runs, pending, toFile);
+      if (count == -1) return (transfer == 0) ? -1 : transfer;
+      transfer += count;
+    }
 
-    if (successful) return 0;
+    return transfer;
+  }
+
+  /**
+   * Transfer runs of physical memory totalling <i>length</i> bytes, at most the size of the bounce
+   * buffer if there are several. A single run is transferred in place; several are gathered into
+   * or scattered from the kernel's bounce buffer, in one call on the file. If another transfer is
+   * using the bounce buffer, each run is transferred in place instead.
+   */
+  private int transferRuns(
+      FileAllocator f, byte[] memory, LinkedList<int[]> runs, int length, boolean toFile) {
+    byte[] buffer = (runs.size() > 1) ? UserKernel.takeBounceBuffer() : null;
+
+    if (buffer == null) {
+      int transfer = 0;
+      for (int[] run : runs) {
+        if (wouldBlock(f, transfer, toFile)) break;
+        int count =
+            toFile ? f.file.write(memory, run[0], run[1]) : f.file.read(memory, run[0], run[1]);
+        if (count == -1) return (transfer == 0) ? -1 : transfer;
+        transfer += count;
+        if (count < run[1]) break;
+      }
+      return transfer;
+    }
+
+    int count, offset = 0;
+    if (toFile) {
+      for (int[] run : runs) {
+        System.arraycopy(memory, run[0], buffer, offset, run[1]);
+        offset += run[1];
+      }
+      count = f.file.write(buffer, 0, length);
+    } else {
+      count = f.file.read(buffer, 0, length);
+      for (int[] run : runs) {
+        if (offset >= count) break;
+        int amount = Math.min(run[1], count - offset);
+        System.arraycopy(buffer, offset, memory, run[0], amount);
+        offset += amount;
+      }
+    }
+
+    UserKernel.returnBounceBuffer(buffer);
+    return count;
+  }
+
+  /**
+   * Test if reading another run would wait for more input, when some has already been read. A
+   * pipe's length is the number of bytes buffered in it, so a read that has emptied it returns
+   * rather than waiting for the writer.
+   */
+  private boolean wouldBlock(FileAllocator f, int transfer, boolean toFile) {
+    return !toFile && transfer > 0 && f.file.length() == 0;
+  }
+
+  private int handleClose(int indiFile) {
+    if (getDescriptor(indiFile) == null) return -1;
+
+    if (closeDescriptor(indiFile)) return 0;
     else return -1;
   }
 
+  /**
+   * Return a new file descriptor referring to the same open file as fileDescriptor. The two
+   * descriptors share the file position.
+   *
+   * <p>Returns the new file descriptor, or -1 if an error occurred.
+   */
+  private int handleDup(int fileDescriptor) {
+    FileAllocator f = getDescriptor(fileDescriptor);
+    if (f == null) return -1;
+
+    int newDescriptor = allocateDescriptor(f);
+    if (newDescriptor != -1) f.refCount++;
+
+    return newDescriptor;
+  }
+
+  /**
+   * Make newDescriptor refer to the same open file as fileDescriptor, closing whatever
+   * newDescriptor referred to first.
+   *
+   * <p>Returns newDescriptor, or -1 if an error occurred.
+   */
+  private int handleDup2(int fileDescriptor, int newDescriptor) {
+    FileAllocator f = getDescriptor(fileDescriptor);
+    if (f == null || newDescriptor < 0 || newDescriptor >= maxFileDescriptors) return -1;
+    if (newDescriptor == fileDescriptor) return newDescriptor;
+
+    installDescriptor(newDescriptor, f);
+
+    return newDescriptor;
+  }
+
+  /**
+   * Create a pipe, and store a file descriptor for its read end in fileDescriptors[0] and one for
+   * its write end in fileDescriptors[1].
+   *
+   * <p>Returns 0 on success, or -1 if an error occurred.
+   */
+  private int handlePipe(int fileDescriptors) {
+    Pipe pipe = new Pipe();
+
+    int readDescriptor = allocateDescriptor(pipe.getReadEnd(), null);
+    if (readDescriptor == -1) return -1;
+    int writeDescriptor = allocateDescriptor(pipe.getWriteEnd(), null);
+
+    byte[] data = new byte[8];
+    Lib.bytesFromInt(data, 0, readDescriptor);
+    Lib.bytesFromInt(data, 4, writeDescriptor);
+    if (writeDescriptor == -1 || writeVirtualMemory(fileDescriptors, data) != data.length) {
+      closeDescriptor(readDescriptor);
+      if (writeDescriptor != -1) closeDescriptor(writeDescriptor);
+      return -1;
+    }
+
+    return 0;
+  }
+
   // exit() never returns
 
   private int handleUnlink(int filAddrs) {
     String nameFile = readVirtualMemoryString(filAddrs, 256);
-    int pgIndex = namedFileSlotFinder(nameFile);
-    boolean sucRemoved = true;
-
-    if (pgIndex == -1) sucRemoved = UserKernel.fileSystem.remove(nameFile);
-    else falloc[pgIndex].unlinked = true;
+    if (nameFile == null) return -1;
 
-    if (sucRemoved) return 0;
+    if (UserKernel.unlinkFile(nameFile)) return 0;
     else return -1;
   }
 
@@ -532,10 +863,15 @@ public class UserProcess {
    * <p>exit() never returns.
    */
   void handleExit(int status) {
+    // cancel queued asynchronous I/O; running operations hold their own references to their files
+    if (ioRing != null) ioRing.close();
     // close all files
-    for (int i = 0; i < falloc.length; i++) {
-      if (falloc[i].file != null) handleSyscall(syscallClose, i, 0, 0, 0);
+    for (int i = 0; i < falloc.size(); i++) {
+      if (falloc.get(i) != null) closeDescriptor(i);
     }
+    // with the descriptors closed a running operation cannot wait on this process, so let it
+    // finish with this process's memory
+    if (ioRing != null) ioRing.waitClosed();
     // remove this process as a parent
     while (childrenID != null && !childrenID.isEmpty()) {
       UserProcess child = UserKernel.getProcess(childrenID.removeFirst());
@@ -557,7 +893,9 @@ public class UserProcess {
   /**
    * Execute the program stored in the specified file, with the specified arguments, in a new child
    * process. The child process has a new unique process ID, and starts with stdin opened as file
-   * descriptor 0, and stdout opened as file descriptor 1.
+   * descriptor 0, and stdout opened as file descriptor 1. These are shared with the current
+   * process's descriptors 0 and 1, if it has them open, so a parent can redirect its child's input
+   * and output with <tt>dup2()</tt>.
    *
    * <p>file is a null-terminated string that specifies the name of the file containing the
    * executable. Note that this string must include the ".coff" extension.
@@ -592,6 +930,9 @@ public class UserProcess {
     }
 
     UserProcess child = newUserProcess();
+    for (int i = 0; i < 2; i++) {
+      if (getDescriptor(i) != null) child.installDescriptor(i, getDescriptor(i));
+    }
     child.parentID = myID;
     childrenID.add(child.myID);
 
@@ -599,6 +940,315 @@ public class UserProcess {
     else return -1;
   }
 
+  /**
+   * Create a new child process that is a copy of the current process, and continues from the same
+   * point. The child shares all of the current process's file descriptors. It also shares every
+   * page of memory, with the writable pages made read-only in both processes; the first write to
+   * such a page, by either process, copies it.
+   *
+   * <p>fork() returns the child process's process ID in the current process, which can be passed
+   * to join(), and 0 in the child process. On error, returns -1.
+   */
+  private int handleFork() {
+    Processor processor = Machine.processor();
+    byte[] memory = processor.getMemory();
+
+    // a page that an asynchronous operation is transferring must keep its frame, so the child is
+    // given its own copy of it now instead of sharing it
+    pinLock.acquire();
+    int copies = 0;
+    for (int i = 0; i < pageTable.length; i++) {
+      if (mustCopy(i)) copies++;
+    }
+    int[] frames = UserKernel.getPages(copies);
+    if (frames == null) {
+      pinLock.release();
+      return -1;
+    }
+
+    UserProcess child = newUserProcess();
+
+    child.pageTable = new TranslationEntry[pageTable.length];
+    child.copyOnWrite = new boolean[pageTable.length];
+    for (int i = 0; i < pageTable.length; i++) {
+      TranslationEntry entry = pageTable[i];
+      if (entry == null) continue;
+      if (mustCopy(i)) {
+        int frame = frames[--copies];
+        System.arraycopy(memory, entry.ppn * pageSize, memory, frame * pageSize, pageSize);
+        child.pageTable[i] = new TranslationEntry(entry);
+        child.pageTable[i].ppn = frame;
+        continue;
+      }
+      if (entry.valid && entry.ppn != UserKernel.getTimePage()) {
+        UserKernel.sharePage(entry.ppn);
+        // shared memory stays shared; everything else is copied on write
+        if (!entry.readOnly && !isAttached(i)) {
+          entry.readOnly = true;
+          copyOnWrite[i] = true;
+        }
+      }
+      child.pageTable[i] = new TranslationEntry(entry);
+      child.copyOnWrite[i] = copyOnWrite[i];
+    }
+    pinLock.release();
+    child.numPages = numPages;
+    child.coff = coff;
+    child.image = image;
+    UserKernel.imageCache.share(image);
+    UserKernel.textCache.open(image.getKey());
+    for (Integer first : attachments.keySet()) {
+      int id = attachments.get(first).getID();
+      child.attachments.put(first, UserKernel.sharedMemory.attach(id, child));
+    }
+    // installing a descriptor closes the child's default one, which must not unmap anything yet
+    for (int i = 0; i < falloc.size(); i++) {
+      if (getDescriptor(i) != null) child.installDescriptor(i, getDescriptor(i));
+    }
+    for (Integer fileDescriptor : mappings.keySet()) {
+      Mapping mapping = mappings.get(fileDescriptor);
+      UserKernel.pageCache.open(mapping.file.name);
+      mapping.file.mapped++;
+      child.mappings.put(fileDescriptor, mapping);
+    }
+
+    // the child returns 0 from the syscall instruction
+    child.forkRegisters = new int[Processor.numUserRegisters];
+    for (int i = 0; i < Processor.numUserRegisters; i++)
+      child.forkRegisters[i] = processor.readRegister(i);
+    child.forkRegisters[Processor.regV0] = 0;
+    child.forkRegisters[Processor.regPC] = child.forkRegisters[Processor.regNextPC];
+
+    child.parentID = myID;
+    childrenID.add(child.myID);
+
+    child.thread = new UThread(child);
+    child.thread.setName(thread.getName()).fork();
+
+    return child.myID;
+  }
+
+  /**
+   * Return the ID of the shared memory segment with the specified key, creating a segment of at
+   * least size bytes if there is none.
+   *
+   * <p>Returns the segment ID, or -1 if an error occurred.
+   */
+  private int handleShmget(int key, int size) {
+    return UserKernel.sharedMemory.get(key, size, this);
+  }
+
+  /**
+   * Map the shared memory segment with the specified ID into this process, after the rest of its
+   * address space. The pages are shared, readable and writable, with every other process that has
+   * attached the segment.
+   *
+   * <p>Returns the address of the segment in this process, or -1 if an error occurred.
+   */
+  private int handleShmat(int id) {
+    SharedMemory.Segment segment = UserKernel.sharedMemory.attach(id, this);
+    if (segment == null) return -1;
+
+    int[] frames = segment.getFrames();
+    int first = pageTable.length;
+
+    pageTable = Arrays.copyOf(pageTable, first + frames.length);
+    copyOnWrite = Arrays.copyOf(copyOnWrite, first + frames.length);
+    for (int i = 0; i < frames.length; i++) {
+      UserKernel.sharePage(frames[i]);
+      pageTable[first + i] = new TranslationEntry(first + i, frames[i], true, false, false, false);
+    }
+    attachments.put(first, segment);
+
+    restoreState();
+
+    return first * pageSize;
+  }
+
+  /**
+   * Unmap the shared memory segment attached at the specified address.
+   *
+   * <p>Returns 0 on success, or -1 if no segment is attached there.
+   */
+  private int handleShmdt(int address) {
+    if (Processor.offsetFromAddress(address) != 0) return -1;
+
+    int first = Processor.pageFromAddress(address);
+    SharedMemory.Segment segment = attachments.get(first);
+    if (segment == null) return -1;
+
+    int[] frames = segment.getFrames();
+    waitUnpinned(first, frames.length);
+    attachments.remove(first);
+
+    for (int i = first; i < first + frames.length; i++) pageTable[i].valid = false;
+    UserKernel.addPages(frames);
+
+    // drop unmapped pages from the end of the address space
+    int length = pageTable.length;
+    while (length > numPages
+        && (pageTable[length - 1] == null || !pageTable[length - 1].valid)
+        && findMapping(length - 1) == null) length--;
+    if (length < pageTable.length) {
+      pageTable = Arrays.copyOf(pageTable, length);
+      copyOnWrite = Arrays.copyOf(copyOnWrite, length);
+      restoreState();
+    }
+
+    UserKernel.sharedMemory.detach(segment);
+
+    return 0;
+  }
+
+  /**
+   * Map the file referred to by fileDescriptor into memory at address, which must be page-aligned
+   * and must not overlap the program's pages or any other memory that is already in use. Pages of
+   * the file are read the first time they are touched, and shared with other processes that map
+   * the same file until they are written. While the file is mapped, read() and write() on its
+   * descriptor fail. Closing the descriptor writes back the pages that were written, and removes
+   * the mapping.
+   *
+   * <p>Returns the length of the file on success, or -1 if an error occurred.
+   */
+  private int handleMmap(int fileDescriptor, int address) {
+    FileAllocator f = getDescriptor(fileDescriptor);
+    if (f == null || f.name == null || f.mapped > 0 || Processor.offsetFromAddress(address) != 0)
+      return -1;
+
+    int length = f.file.length();
+    if (length < 0) return -1;
+
+    int first = Processor.pageFromAddress(address);
+    int count = (length + pageSize - 1) / pageSize;
+    if ((long) first + count > Processor.maxPages) return -1;
+    // the program's own pages are in use even before a demand-paged process touches them
+    if (count > 0 && first < numPages) return -1;
+    for (int vpn = first; vpn < Math.min(first + count, pageTable.length); vpn++) {
+      if ((pageTable[vpn] != null && pageTable[vpn].valid) || findMapping(vpn) != null) return -1;
+    }
+
+    if (first + count > pageTable.length) {
+      pageTable = Arrays.copyOf(pageTable, first + count);
+      copyOnWrite = Arrays.copyOf(copyOnWrite, first + count);
+      restoreState();
+    }
+
+    f.mapped++;
+    UserKernel.pageCache.open(f.name);
+    mappings.put(fileDescriptor, new Mapping(f, first, count, length));
+
+    return length;
+  }
+
+  /** Test if virtual page <i>vpn</i> belongs to an attached shared memory segment. */
+  private boolean isAttached(int vpn) {
+    for (Integer first : attachments.keySet()) {
+      if (vpn >= first && vpn < first + attachments.get(first).getFrames().length) return true;
+    }
+
+    return false;
+  }
+
+  /** Return the mapping of a file that covers virtual page <i>vpn</i>, or <tt>null</tt>. */
+  protected Mapping findMapping(int vpn) {
+    for (Mapping mapping : mappings.values()) {
+      if (vpn >= mapping.firstVPN && vpn < mapping.firstVPN + mapping.numPages) return mapping;
+    }
+
+    return null;
+  }
+
+  /**
+   * Remove the mapping of a file, writing back every page this process wrote to.
+   *
+   * @param fileDescriptor the descriptor the file was mapped through.
+   */
+  private void unmap(int fileDescriptor) {
+    Mapping mapping = mappings.get(fileDescriptor);
+    waitUnpinned(mapping.firstVPN, mapping.numPages);
+    mappings.remove(fileDescriptor);
+    byte[] memory = Machine.processor().getMemory();
+
+    for (int i = 0; i < mapping.numPages; i++) {
+      int vpn = mapping.firstVPN + i;
+      TranslationEntry entry = pageTable[vpn];
+      if (entry == null || !entry.valid) continue;
+
+      if (entry.dirty) {
+        int amount = Math.min(pageSize, mapping.length - i * pageSize);
+        mapping.file.file.write(i * pageSize, memory, entry.ppn * pageSize, amount);
+        UserKernel.touchFile(mapping.file.name);
+        UserKernel.pageCache.invalidate(mapping.file.name, i);
+      }
+
+      UserKernel.addPage(entry.ppn);
+      pageTable[vpn] = null;
+      copyOnWrite[vpn] = false;
+    }
+
+    UserKernel.pageCache.close(mapping.file.name);
+    mapping.file.mapped--;
+  }
+
+  /**
+   * Handle a page fault or a write to a read-only page, at virtual page <i>vpn</i>. Loads pages of
+   * mapped files, and copies copy-on-write pages.
+   *
+   * @param cause the exception, either <tt>Processor.exceptionPageFault</tt> or
+   *     <tt>Processor.exceptionReadOnly</tt>.
+   * @param vpn the virtual page.
+   * @return <tt>true</tt> if the fault was resolved, and the access can be retried.
+   */
+  protected boolean handlePageFault(int cause, int vpn) {
+    if (pageTable == null || vpn >= pageTable.length) return false;
+
+    if (cause == Processor.exceptionReadOnly) return handleCopyOnWrite(vpn);
+
+    Mapping mapping = findMapping(vpn);
+    if (mapping == null) return false;
+
+    int page = vpn - mapping.firstVPN;
+    int frame =
+        UserKernel.pageCache.getPage(mapping.file.name, mapping.file.file, page, mapping.length);
+    if (frame == -1) return false;
+
+    // the cached page is copied on the first write to it
+    pageTable[vpn] = new TranslationEntry(vpn, frame, true, true, false, false);
+    copyOnWrite[vpn] = true;
+
+    return true;
+  }
+
+  /**
+   * Give this process its own copy of a copy-on-write page, so that it can be written. If no other
+   * process shares the page any more, it is simply made writable.
+   * A page pinned for asynchronous I/O is never copy-on-write, since <tt>pinPages()</tt> copies it
+   * first and <tt>fork()</tt> does not share it, so its frame never changes under a transfer.
+   *
+   * @param vpn the virtual page.
+   * @return <tt>false</tt> if the page is not copy-on-write, or could not be copied.
+   */
+  protected boolean handleCopyOnWrite(int vpn) {
+    if (!copyOnWrite[vpn]) return false;
+
+    TranslationEntry entry = pageTable[vpn];
+    if (UserKernel.isPageShared(entry.ppn)) {
+      int frame = UserKernel.getPage();
+      if (frame == -1) return false;
+
+      byte[] memory = Machine.processor().getMemory();
+      System.arraycopy(memory, entry.ppn * pageSize, memory, frame * pageSize, pageSize);
+
+      UserKernel.addPage(entry.ppn);
+      entry.ppn = frame;
+    }
+
+    entry.readOnly = false;
+    copyOnWrite[vpn] = false;
+
+    return true;
+  }
+
   /**
    * Suspend execution of the current process until the child process specified by the processID
    * argument has exited. If the child has already exited by the time of the call, returns
@@ -649,6 +1299,28 @@ public class UserProcess {
     }
   }
 
+  /**
+   * Suspend the current process for at least the specified number of clock ticks, using the kernel
+   * alarm. Other processes run in the meantime.
+   *
+   * <p>Returns 0 on success, or -1 if ticks is negative.
+   */
+  private int handleSleep(int ticks) {
+    if (ticks < 0) return -1;
+
+    if (ticks > 0) ThreadedKernel.alarm.waitUntil(ticks);
+
+    return 0;
+  }
+
+  /**
+   * Return the number of clock ticks since Nachos started. Only the low 32 bits are returned; the
+   * full count can be read from the time page without a syscall.
+   */
+  private int handleGetTime() {
+    return (int) Machine.timer().getTime();
+  }
+
   /**
    * Handle a syscall exception. Called by <tt>handleException()</tt>. The <i>syscall</i> argument
    * identifies which syscall the user executed:
@@ -670,6 +1342,22 @@ public class UserProcess {
    * </tt></td></tr>
    * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
    * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+   * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+   * <tr><td>13</td><td><tt>int  sleep(int ticks);</tt></td></tr>
+   * <tr><td>14</td><td><tt>unsigned int gettime();</tt></td></tr>
+   * <tr><td>15</td><td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+   * </tt></td></tr>
+   * <tr><td>16</td><td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+   * </tt></td></tr>
+   * <tr><td>17</td><td><tt>int  dup(int fd);</tt></td></tr>
+   * <tr><td>18</td><td><tt>int  dup2(int fd, int newfd);</tt></td></tr>
+   * <tr><td>19</td><td><tt>int  fork();</tt></td></tr>
+   * <tr><td>20</td><td><tt>int  shmget(int key, int size);</tt></td></tr>
+   * <tr><td>21</td><td><tt>char *shmat(int id);</tt></td></tr>
+   * <tr><td>22</td><td><tt>int  shmdt(char *address);</tt></td></tr>
+   * <tr><td>23</td><td><tt>int  pipe(int fileDescriptors[2]);</tt></td></tr>
+   * <tr><td>24</td><td><tt>int  io_enter(struct io_ring *ring, int minComplete);
+   * </tt></td></tr>
    * </table>
    *
    * @param syscall the syscall number.
@@ -692,10 +1380,24 @@ public class UserProcess {
         return handleRead(a0, a1, a2);
       case syscallWrite:
         return handleWrite(a0, a1, a2);
+      case syscallReadv:
+        return handleVector(a0, a1, a2, false);
+      case syscallWritev:
+        return handleVector(a0, a1, a2, true);
       case syscallClose:
         return  handleClose(a0);
       case syscallUnlink:
         return handleUnlink(a0);
+      case syscallMmap:
+        return handleMmap(a0, a1);
+      case syscallDup:
+        return handleDup(a0);
+      case syscallDup2:
+        return handleDup2(a0, a1);
+      case syscallPipe:
+        return handlePipe(a0);
+      case syscallIoEnter:
+        return handleIoEnter(a0, a1);
 
       case syscallExit:
         handleExit(a0);
@@ -705,6 +1407,20 @@ public class UserProcess {
 
       case syscallJoin:
         return handleJoin(a0, a1);
+      case syscallFork:
+        return handleFork();
+
+      case syscallShmget:
+        return handleShmget(a0, a1);
+      case syscallShmat:
+        return handleShmat(a0);
+      case syscallShmdt:
+        return handleShmdt(a0);
+
+      case syscallSleep:
+        return handleSleep(a0);
+      case syscallGetTime:
+        return handleGetTime();
 
       default:
         Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -736,43 +1452,232 @@ public class UserProcess {
         processor.advancePC();
         break;
 
+      case Processor.exceptionPageFault:
+      case Processor.exceptionReadOnly:
+        // retry the instruction once the page has been loaded or copied; otherwise it is an error
+        if (handlePageFault(
+            cause, Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr)))) break;
+        handleFatalException(cause);
+        break;
+
       default:
-        // free the memory in case of abnormal exit
-        // unloadSections();
-        handleExit(-1);
+        handleFatalException(cause);
+        break;
+    }
+  }
+
+  /** Kill this process after an exception it cannot recover from. */
+  private void handleFatalException(int cause) {
+    // free the memory in case of abnormal exit
+    // unloadSections();
+    handleExit(-1);
+
+    Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
+    // Lib.assertNotReached("Unexpected exception");
+  }
+
+  /**
+   * Return the open file referred to by a file descriptor.
+   *
+   * @param fileDescriptor the file descriptor.
+   * @return the open file, or <tt>null</tt> if the descriptor is not open.
+   */
+  protected FileAllocator getDescriptor(int fileDescriptor) {
+    if (fileDescriptor < 0 || fileDescriptor >= falloc.size()) return null;
+
+    return falloc.get(fileDescriptor);
+  }
+
+  /**
+   * Open a new file descriptor for a newly opened file.
+   *
+   * @param file the file.
+   * @param name the name of the file in the file system, or <tt>null</tt> if it has none (a console
+   *     or a network connection). The caller must already have recorded it in the open-file table.
+   * @return the new file descriptor, or -1 if this process has too many open.
+   */
+  protected int allocateDescriptor(OpenFile file, String name) {
+    FileAllocator f = new FileAllocator(file, name);
+
+    int fileDescriptor = allocateDescriptor(f);
+    if (fileDescriptor == -1) f.release();
+
+    return fileDescriptor;
+  }
+
+  /**
+   * Add a reference to an open file, so that it stays open while an asynchronous operation uses it
+   * even if its descriptors are closed.
+   *
+   * @param f the open file.
+   */
+  protected void holdFile(FileAllocator f) {
+    f.refCount++;
+  }
+
+  /**
+   * Drop a reference added by <tt>holdFile()</tt>, closing the file if it was the last one.
+   *
+   * @param f the open file.
+   */
+  protected void releaseFile(FileAllocator f) {
+    f.release();
+  }
+
+  /**
+   * Pin the pages of a buffer that an asynchronous operation will transfer, so that they keep
+   * their physical pages until <tt>unpinPages()</tt>. Closing a mapped file or detaching shared
+   * memory waits for its pages to be unpinned, and <tt>fork()</tt> copies pinned pages instead of
+   * sharing them. A copy-on-write page is copied before it is pinned, so a pinned page is never
+   * copied on write. Pages past the end of the address space are not pinned, since a transfer
+   * stops before them.
+   *
+   * @param vaddr the address of the buffer.
+   * @param length the length of the buffer.
+   * @return the number of pages pinned, starting with the buffer's first page.
+   */
+  protected int pinPages(int vaddr, int length) {
+    if (length <= 0) return 0;
+
+    int first = Processor.pageFromAddress(vaddr);
+    long end = ((long) vaddr & 0xFFFFFFFFL) + length;
+    int count = (int) Math.min((end - 1) / pageSize - first + 1, pageTable.length - first);
+
+    pinLock.acquire();
+    for (int i = 0; i < count; i++) {
+      int vpn = first + i;
+      if (!isAccessible(vpn, true)) isAccessible(vpn, false);
+      Integer pinned = pins.get(vpn);
+      pins.put(vpn, (pinned == null) ? 1 : pinned + 1);
+    }
+    pinLock.release();
 
-        Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
-        // Lib.assertNotReached("Unexpected exception");
+    return Math.max(count, 0);
+  }
+
+  /**
+   * Unpin the pages of a buffer pinned by <tt>pinPages()</tt>.
+   *
+   * @param vaddr the address of the buffer.
+   * @param count the number of pages <tt>pinPages()</tt> pinned.
+   */
+  protected void unpinPages(int vaddr, int count) {
+    int first = Processor.pageFromAddress(vaddr);
+
+    pinLock.acquire();
+    for (int i = 0; i < count; i++) {
+      int vpn = first + i;
+      int pinned = pins.get(vpn);
+      if (pinned == 1) pins.remove(vpn);
+      else pins.put(vpn, pinned - 1);
     }
+    unpinned.wakeAll();
+    pinLock.release();
   }
 
-  private int emptyFileSlotFinder() {
-    for (int i = 0; i < 16; i++) {
-      if (falloc[i].file == null) return i;
+  /** Wait until none of <i>count</i> virtual pages starting at <i>first</i> is pinned. */
+  private void waitUnpinned(int first, int count) {
+    pinLock.acquire();
+    while (isPinned(first, count)) unpinned.sleep();
+    pinLock.release();
+  }
+
+  private boolean isPinned(int first, int count) {
+    for (int vpn : pins.keySet()) {
+      if (vpn >= first && vpn - first < count) return true;
     }
 
-    return -1;
+    return false;
   }
 
-  private int namedFileSlotFinder(String fname) {
-    for (int i = 0; i < 16; i++) {
-      if (falloc[i].name == fname) return i;
+  /** Test if <tt>fork()</tt> must copy a page, because it is pinned, writable and private. */
+  private boolean mustCopy(int vpn) {
+    TranslationEntry entry = pageTable[vpn];
+
+    return entry != null
+        && entry.valid
+        && !entry.readOnly
+        && pins.containsKey(vpn)
+        && !isAttached(vpn);
+  }
+
+  /** Store <i>f</i> in a free descriptor, reusing closed ones first. Does not add a reference. */
+  private int allocateDescriptor(FileAllocator f) {
+    Integer fileDescriptor;
+    while ((fileDescriptor = freeDescriptors.poll()) != null) {
+      if (falloc.get(fileDescriptor) == null) {
+        falloc.set(fileDescriptor, f);
+        return fileDescriptor;
+      }
     }
 
-    return -1;
+    if (falloc.size() >= maxFileDescriptors) return -1;
+
+    falloc.add(f);
+    return falloc.size() - 1;
+  }
+
+  /**
+   * Make descriptor <i>fileDescriptor</i> refer to <i>f</i>, closing whatever it referred to and
+   * growing the table if needed. Adds a reference to <i>f</i>.
+   */
+  private void installDescriptor(int fileDescriptor, FileAllocator f) {
+    if (getDescriptor(fileDescriptor) != null) closeDescriptor(fileDescriptor);
+
+    while (falloc.size() <= fileDescriptor) {
+      freeDescriptors.push(falloc.size());
+      falloc.add(null);
+    }
+    falloc.set(fileDescriptor, f);
+    f.refCount++;
+  }
+
+  /**
+   * Close an open file descriptor, and the open file it refers to if no other descriptor does.
+   *
+   * @param fileDescriptor the open file descriptor.
+   * @return <tt>false</tt> if the file was unlinked and could not be removed.
+   */
+  protected boolean closeDescriptor(int fileDescriptor) {
+    FileAllocator f = falloc.get(fileDescriptor);
+
+    if (mappings.containsKey(fileDescriptor)) unmap(fileDescriptor);
+
+    falloc.set(fileDescriptor, null);
+    freeDescriptors.push(fileDescriptor);
+
+    return f.release();
   }
 
   public int getParentID() {
     return parentID;
   }
 
-  public class FileAllocator { // Properties of a file
-    private OpenFile file = null;
-    private String name = "";
-    private int pos = 0;
-    private boolean unlinked = false;
+  /** A file mapped into memory by <tt>mmap()</tt>. */
+  protected static class Mapping {
+    private FileAllocator file;
+    private int firstVPN, numPages, length;
+
+    private Mapping(FileAllocator file, int firstVPN, int numPages, int length) {
+      this.file = file;
+      this.firstVPN = firstVPN;
+      this.numPages = numPages;
+      this.length = length;
+    }
+  }
 
-    public FileAllocator() {}
+  /**
+   * An open file: a file, together with its position. Every descriptor opened by <tt>dup()</tt>,
+   * <tt>dup2()</tt> or <tt>exec()</tt> from an existing one refers to the same open file, and shares
+   * the position, even across processes. The open file is closed with its last descriptor.
+   */
+  public static class FileAllocator { // Properties of a file
+    private OpenFile file;
+    private String name;
+    private int pos = 0;
+    private int refCount = 1;
+    // the number of mappings of the file into memory
+    private int mapped = 0;
 
     public FileAllocator(OpenFile file, String name) {
       this.file = file;
@@ -783,18 +1688,10 @@ public class UserProcess {
       return file;
     }
 
-    public void setFile(OpenFile file) {
-      this.file = file;
-    }
-
     public String getName() {
       return name;
     }
 
-    public void setName(String name) {
-      this.name = name;
-    }
-
     public int getPos() {
       return pos;
     }
@@ -803,12 +1700,12 @@ public class UserProcess {
       this.pos = pos;
     }
 
-    public boolean isUnlinked() {
-      return unlinked;
-    }
+    // drop a reference, closing the file with the last one
+    private boolean release() {
+      if (--refCount > 0) return true;
 
-    public void setUnlinked(boolean unlinked) {
-      this.unlinked = unlinked;
+      file.close();
+      return name == null || UserKernel.closeFile(name);
     }
   }
 }
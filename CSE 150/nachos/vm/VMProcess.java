@@ -1,15 +1,34 @@
 package nachos.vm;
 
+import nachos.machine.CoffSection;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
+import nachos.machine.TranslationEntry;
+import nachos.userprog.UserKernel;
 import nachos.userprog.UserProcess;
 
-/** A <tt>UserProcess</tt> that supports demand-paging. */
+import java.util.Arrays;
+
+/**
+ * A <tt>UserProcess</tt> that supports demand-paging. No page of the executable is loaded before
+ * the program starts; each page of a section is read from the executable the first time the program
+ * touches it, and each page of the stack is filled with zeros, so a program that only uses part of
+ * its image does not pay for the rest.
+ *
+ * <p>
+ *
+ * <p>If the processor has a TLB, TLB misses are filled from the page table, and the TLB is flushed
+ * on every context switch.
+ */
 public class VMProcess extends UserProcess {
   private static final int pageSize = Processor.pageSize;
   private static final char dbgProcess = 'a';
   private static final char dbgVM = 'v';
 
+  /** The TLB entry to replace on the next miss, if every entry is valid. */
+  private int nextVictim = 0;
+
   /** Allocate a new process. */
   public VMProcess() {
     super();
@@ -20,7 +39,8 @@ public class VMProcess extends UserProcess {
    * <tt>UThread.saveState()</tt>.
    */
   public void saveState() {
-    super.saveState();
+    if (Machine.processor().hasTLB()) flushTLB();
+    else super.saveState();
   }
 
   /**
@@ -28,16 +48,21 @@ public class VMProcess extends UserProcess {
    * <tt>UThread.restoreState()</tt>.
    */
   public void restoreState() {
-    super.restoreState();
+    if (Machine.processor().hasTLB()) flushTLB();
+    else super.restoreState();
   }
 
   /**
-   * Initializes page tables for this process so that the executable can be demand-paged.
+   * Initializes page tables for this process so that the executable can be demand-paged. Every
+   * page except the time page starts out unmapped, and is loaded by <tt>loadPage()</tt> when it is
+   * first touched.
    *
    * @return <tt>true</tt> if successful.
    */
   protected boolean loadSections() {
-    return super.loadSections();
+    Lib.debug(dbgVM, "\t" + (numPages - 1) + " pages to load on demand");
+
+    return true;
   }
 
   /** Release any resources allocated by <tt>loadSections()</tt>. */
@@ -45,6 +70,136 @@ public class VMProcess extends UserProcess {
     super.unloadSections();
   }
 
+  /**
+   * Handle a page fault on a virtual page. A page of the program that has never been touched, and
+   * is not covered by a mapped file, is loaded from the executable; any other fault is handled as
+   * by <tt>UserProcess</tt>.
+   *
+   * @param cause the exception.
+   * @param vpn the virtual page.
+   * @return <tt>true</tt> if the fault was resolved, and the access can be retried.
+   */
+  protected boolean handlePageFault(int cause, int vpn) {
+    if (cause == Processor.exceptionPageFault
+        && pageTable != null
+        && vpn < numPages
+        && pageTable[vpn] == null
+        && findMapping(vpn) == null) return loadPage(vpn);
+
+    return super.handlePageFault(cause, vpn);
+  }
+
+  /**
+   * Load a virtual page of the executable into a free physical page. A page belonging to a section
+   * is read from the executable, or, if the section is read-only, shared through the text cache
+   * with other processes running the same program; a page of the stack or arguments is filled with
+   * zeros.
+   *
+   * @param vpn the virtual page.
+   * @return <tt>true</tt> if successful, or <tt>false</tt> if there is no free memory.
+   */
+  private boolean loadPage(int vpn) {
+    CoffSection section = findSection(vpn);
+
+    int ppn;
+    if (section != null && section.isReadOnly()) {
+      Lib.debug(dbgVM, "\tsharing page " + vpn + " of section " + section.getName());
+      ppn = UserKernel.textCache.getPage(image, section, vpn - section.getFirstVPN());
+    } else {
+      ppn = UserKernel.getPage();
+    }
+    if (ppn == -1) {
+      Lib.debug(dbgVM, "\tno free memory for page " + vpn);
+      return false;
+    }
+
+    if (section == null) {
+      Lib.debug(dbgVM, "\tzero-filling page " + vpn);
+      byte[] memory = Machine.processor().getMemory();
+      Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+    } else if (!section.isReadOnly()) {
+      Lib.debug(dbgVM, "\tloading page " + vpn + " of section " + section.getName());
+      image.loadPage(section, vpn - section.getFirstVPN(), ppn);
+    }
+
+    boolean readOnly = (section != null && section.isReadOnly());
+    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, readOnly, false, false);
+
+    return true;
+  }
+
+  /**
+   * Find the section of the executable containing a virtual page.
+   *
+   * @param vpn the virtual page.
+   * @return the section, or <tt>null</tt> if the page is not part of any section.
+   */
+  private CoffSection findSection(int vpn) {
+    for (int s = 0; s < coff.getNumSections(); s++) {
+      CoffSection section = coff.getSection(s);
+      if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength())
+        return section;
+    }
+
+    return null;
+  }
+
+  /**
+   * Copy the used and dirty bits of every valid TLB entry back to the page table, and invalidate
+   * the TLB.
+   */
+  private void flushTLB() {
+    Processor processor = Machine.processor();
+
+    for (int i = 0; i < processor.getTLBSize(); i++) {
+      TranslationEntry entry = processor.readTLBEntry(i);
+      if (!entry.valid) continue;
+
+      syncEntry(entry);
+      entry.valid = false;
+      processor.writeTLBEntry(i, entry);
+    }
+  }
+
+  /** Copy the used and dirty bits of a TLB entry back to the page table. */
+  private void syncEntry(TranslationEntry entry) {
+    if (pageTable == null || entry.vpn >= pageTable.length) return;
+
+    TranslationEntry pte = pageTable[entry.vpn];
+    if (pte != null && pte.valid && pte.ppn == entry.ppn) {
+      pte.used |= entry.used;
+      pte.dirty |= entry.dirty;
+    }
+  }
+
+  /**
+   * Fill the TLB entry for the virtual address that missed, loading the page first if it has never
+   * been touched. An invalid TLB entry is used if there is one; otherwise entries are replaced in
+   * turn.
+   *
+   * @return <tt>true</tt> if the miss was handled, and the access can be retried.
+   */
+  private boolean handleTLBMiss() {
+    Processor processor = Machine.processor();
+
+    int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+    if (!isAccessible(vpn, false)) return false;
+
+    int victim = -1;
+    for (int i = 0; i < processor.getTLBSize() && victim == -1; i++) {
+      if (!processor.readTLBEntry(i).valid) victim = i;
+    }
+    if (victim == -1) {
+      victim = nextVictim;
+      nextVictim = (nextVictim + 1) % processor.getTLBSize();
+      syncEntry(processor.readTLBEntry(victim));
+    }
+
+    processor.writeTLBEntry(victim, new TranslationEntry(pageTable[vpn]));
+
+    return true;
+  }
+
   /**
    * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>. The <i>cause</i>
    * argument identifies which exception occurred; see the <tt>Processor.exceptionZZZ</tt>
@@ -56,7 +211,15 @@ public class VMProcess extends UserProcess {
     Processor processor = Machine.processor();
 
     switch (cause) {
+      case Processor.exceptionTLBMiss:
+        if (handleTLBMiss()) break;
+        // an address outside the program is handled like a page fault, and kills it
+        super.handleException(Processor.exceptionPageFault);
+        break;
+
       default:
+        // the kernel works on the page table, which may be about to change
+        if (processor.hasTLB()) flushTLB();
         super.handleException(cause);
         break;
     }